@@ -12,6 +12,12 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.security.PrivateKey;
 import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.csv.CSVPrinter;
@@ -20,6 +26,7 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.commons.io.IOUtils;
 
 import net.handle.hdllib.AbstractMessage;
+import net.handle.hdllib.AbstractRequest;
 import net.handle.hdllib.AbstractResponse;
 import net.handle.hdllib.AddValueRequest;
 import net.handle.hdllib.AdminRecord;
@@ -31,6 +38,7 @@ import net.handle.hdllib.HandleResolver;
 import net.handle.hdllib.HandleValue;
 import net.handle.hdllib.ModifyValueRequest;
 import net.handle.hdllib.PublicKeyAuthenticationInfo;
+import net.handle.hdllib.RemoveValueRequest;
 import net.handle.hdllib.Util;
 
 import org.slf4j.Logger;
@@ -51,6 +59,13 @@ public class HandleAdmin {
     private static String DESC_TYPE = "DESC";
     private static String URL_TYPE = "URL";
 
+    /** Batch minting defaults - can be overridden in config by 
+     *  maxInFlight, maxRetries and retryBackoff (ms) */
+    private static int DEFAULT_IN_FLIGHT = 8;
+    private static int DEFAULT_RETRIES = 4;
+    private static long DEFAULT_BACKOFF = 500;
+    private static long MAX_BACKOFF = 30000;
+
     private Configuration conf;
 
     private String privateKeyFile;
@@ -64,6 +79,16 @@ public class HandleAdmin {
     /** Administrative Record */
     private AdminRecord admin;
 
+    /** The admin record as a HandleValue, built once and put on every
+     *  new handle */
+    private HandleValue adminValue;
+
+    /** Batch settings */
+    private int maxInFlight;
+    private int maxRetries;
+    private long retryBackoff;
+    private Random jitter = new Random();
+
     /** The base URL to prepend to Handles */
     private String handleBaseUrl;
 
@@ -78,7 +103,18 @@ public class HandleAdmin {
 	 */
 	
 	HandleAdmin(Configuration hconf) throws Exception {
+		this(hconf, new HandleResolver());
+	}
+	
+	
+	/**
+	 * @param hconf    Configuration snippet
+	 * @param resolver sends the requests - a stand-in for testing
+	 */
+	
+	HandleAdmin(Configuration hconf, HandleResolver resolver) throws Exception {
 		conf = hconf;
+		this.resolver = resolver;
 		
 		init();
 		
@@ -105,9 +141,8 @@ public class HandleAdmin {
         	throw new Exception("Error reading naming authority: ", ex);
         }
 
-        // Our basic resolver... processes requests when they are ready
-        resolver = new HandleResolver();
-        resolver.traceMessages = true;
+        // Tracing every message is slow - only switch it on when asked
+        resolver.traceMessages = ( conf.getString("traceMessages") != null );
 
         // Private key
         PrivateKey privateKey = null;
@@ -129,7 +164,14 @@ public class HandleAdmin {
         admin = new AdminRecord(prefix, PUBLIC_INDEX,
                   	true, true, true, true, true, true,
                     true, true, true, true, true, true);
+        adminValue = getAdminHandleValue();
+        if (adminValue == null) {
+        	throw new Exception("Error creating HandleValue: admin");
+        }
 
+        maxInFlight = conf.getInt("maxInFlight", DEFAULT_IN_FLIGHT);
+        maxRetries = conf.getInt("maxRetries", DEFAULT_RETRIES);
+        retryBackoff = conf.getLong("retryBackoff", DEFAULT_BACKOFF);
 
             // Work out what the base URL for finished Handles will look like
         String handleDomain = conf.getString("publishedDomain");
@@ -220,46 +262,8 @@ private byte[] readPassPhrase(byte[] key) throws Exception {
  public String createHandle(String oid,
             String description, String url) throws Exception {
 
-	 	String suffix;
-	 	try {
-	 		 	suffix = encryptID(oid);
-	 	} catch( Exception e) {
-            throw new Exception("Error building the handle suffix");
-        }
-
-        // Make sure the suffix is even valid
-        String handle = namingAuthority + "/" + suffix;
-        byte[] handleBytes = null;
-        try {
-            handleBytes = handle.getBytes("UTF8");
-        } catch (Exception ex) {
-            throw new Exception(
-                    "Invalid encoding for Suffix: '" + suffix + "'", ex);
-        }
-
-        // Prepare the data going to be used inside the handle
-        HandleValue adminVal = getAdminHandleValue();
-        HandleValue descVal = getDescHandleValue(description);
-        if (adminVal == null ) {
-        	throw new Exception("Error creating HandleValue: admin");
-        }
-        if( descVal == null) {
-            throw new Exception("Error creating HandleValues: description");
-        }
-
-        HandleValue[] values = {adminVal, descVal};
-        // Has URL - modify the array
-        if (url != null) {
-            HandleValue urlVal = getUrlHandleValue(url);
-            if (urlVal == null) {
-                throw new Exception("Error creating HandleValue: URL");
-            }
-            values = new HandleValue[] {adminVal, descVal, urlVal};
-        }
-
-        // Now prepare the actualy creationg request for sending
-        CreateHandleRequest req = new CreateHandleRequest(
-                handleBytes, values, authentication);
+        CreateHandleRequest req = buildRequest(oid, description, url);
+        String suffix = suffixOf(req);
 
         // And send
         try {
@@ -295,33 +299,446 @@ private byte[] readPassPhrase(byte[] key) throws Exception {
                     "Error attempting to create handle:", ex);
         }
 
-        return handleBaseUrl + handle;
+        return handleBaseUrl + namingAuthority + "/" + suffix;
     }
  
- 	/* encryptID: take a unique ID and anonymise it
+
+/* Mint - one handle to be minted by mintAll or reconcile, and what
+ * became of it: handle is the handle URL if it was minted, was already
+ * there or was brought up to date, otherwise error says why not.
+ */
+
+ public static class Mint {
+	 String oid;
+	 String description;
+	 String url;
+	 String handle;
+	 boolean existed;
+	 boolean updated;
+	 boolean unchanged;
+	 boolean missing;
+	 int attempts;
+	 Exception error;
+
+	 public Mint(String oid, String description, String url) {
+		 this.oid = oid;
+		 this.description = description;
+		 this.url = url;
+	 }
+
+	 public String getOid() { return oid; }
+	 public String getHandle() { return handle; }
+	 public boolean existed() { return existed; }
+	 public boolean updated() { return updated; }
+	 public boolean unchanged() { return unchanged; }
+	 public int getAttempts() { return attempts; }
+	 public Exception getError() { return error; }
+ }
+
+
+ /* MintListener - told about each Mint as it finishes, one at a time */
+
+ public interface MintListener {
+	 void done(Mint mint);
+ }
+
+
+/* mintAll - mints handles for everything the iterator gives, keeping up
+ * to maxInFlight requests going at once.  The iterator is only read as
+ * fast as requests finish, so it can stream from a file or a query.
+ *
+ * A handle which already exists counts as minted, so a batch which was
+ * interrupted can just be run again.  Busy servers, timeouts and 
+ * connection failures are retried up to maxRetries times, waiting 
+ * retryBackoff ms, then twice that and so on.  Anything else fails
+ * that one handle straight away.
+ *
+ * Returns the number which failed.
+ */
+
+ public int mintAll(Iterator<Mint> mints, MintListener listener) throws InterruptedException {
+	 return run(mints, null, listener);
+ }
+
+
+/* reconcile - like mintAll, but brings existing handles up to date
+ * using the ledger of what was sent last time:
+ *
+ * - an object which is in the ledger with the same URL and description
+ *   is skipped without going near the server;
+ * - one whose URL or description has changed has just those values
+ *   modified (or the URL added or removed), or if its handle has been
+ *   deleted from the server, it's created again;
+ * - one which isn't in the ledger is created, and if it turns out to
+ *   exist already, its values are set as for a change.
+ *
+ * The ledger is updated as handles succeed and saved at the end, even
+ * if the run is interrupted, once the requests already sent have 
+ * finished.  Returns the number which failed.
+ */
+
+ public int reconcile(Iterator<Mint> mints, HandleLedger ledger, MintListener listener) 
+ 		throws InterruptedException, IOException {
+	 try {
+		 return run(mints, ledger, listener);
+	 } finally {
+		 ledger.save();
+	 }
+ }
+
+
+ private int run(Iterator<Mint> mints, final HandleLedger ledger, final MintListener listener) 
+ 		throws InterruptedException {
+	 final Semaphore slots = new Semaphore(maxInFlight);
+	 final AtomicInteger failed = new AtomicInteger();
+	 final AtomicInteger minted = new AtomicInteger();
+	 final AtomicInteger existing = new AtomicInteger();
+	 final AtomicInteger updated = new AtomicInteger();
+	 int unchanged = 0;
+	 ExecutorService executor = Executors.newFixedThreadPool(maxInFlight);
+	 long start = System.currentTimeMillis();
+	 int n = 0;
+	 try {
+		 while (mints.hasNext()) {
+			 final Mint m = mints.next();
+			 n++;
+			 if (ledger != null && ledger.isCurrent(m.oid, m.url, m.description)) {
+				 m.handle = ledger.get(m.oid).getHandle();
+				 m.unchanged = true;
+				 unchanged++;
+				 if (listener != null) {
+					 synchronized (listener) {
+						 listener.done(m);
+					 }
+				 }
+				 continue;
+			 }
+			 slots.acquire();
+			 try {
+				 executor.execute(new Runnable() {
+					 public void run() {
+						 try {
+							 if (ledger == null) {
+								 mint(m);
+							 } else {
+								 reconcileOne(m, ledger);
+							 }
+							 if (m.error != null) {
+								 failed.incrementAndGet();
+							 } else if (m.updated) {
+								 updated.incrementAndGet();
+							 } else if (m.existed) {
+								 existing.incrementAndGet();
+							 } else {
+								 minted.incrementAndGet();
+							 }
+							 if (listener != null) {
+								 synchronized (listener) {
+									 listener.done(m);
+								 }
+							 }
+						 } catch (RuntimeException e) {
+							 log.error("Minting " + m.oid + " failed", e);
+							 failed.incrementAndGet();
+						 } finally {
+							 slots.release();
+						 }
+					 }
+				 });
+			 } catch (RuntimeException e) {
+				 slots.release();
+				 throw e;
+			 }
+		 }
+	 } finally {
+		 // wait for the last ones, even if the loop was cut short, so
+		 // that reconcile doesn't save the ledger while they're going
+		 slots.acquireUninterruptibly(maxInFlight);
+		 slots.release(maxInFlight);
+		 executor.shutdown();
+	 }
+	 log.info("Minted " + minted + " handles, " + existing + " already there, " + updated + " updated, "
+			 + unchanged + " unchanged, " + failed + " failed, out of " + n + " in " 
+			 + (System.currentTimeMillis() - start) + " ms");
+	 return failed.get();
+ }
+
+
+ /* mint - sends one Mint's create request and fills in the result */
+
+ private void mint(Mint m) {
+	 CreateHandleRequest req;
+	 try {
+		 req = buildRequest(m.oid, m.description, m.url);
+	 } catch (Exception e) {
+		 m.error = e;
+		 return;
+	 }
+	 String handle = handleBaseUrl + Util.decodeString(req.handle);
+	 int code = send(req, m);
+	 if (code == AbstractMessage.RC_SUCCESS) {
+		 m.handle = handle;
+	 } else if (code == AbstractMessage.RC_HANDLE_ALREADY_EXISTS) {
+		 m.handle = handle;
+		 m.existed = true;
+	 } else if (code >= 0) {
+		 m.error = new Exception("Error creating handle for " + m.oid + ": " 
+				 + AbstractMessage.getResponseCodeMessage(code));
+	 }
+ }
+
+
+ /* reconcileOne - creates or updates one handle, and records it in the
+  * ledger if that worked
+  */
+
+ private void reconcileOne(Mint m, HandleLedger ledger) {
+	 HandleLedger.Entry old = ledger.get(m.oid);
+	 if (old == null) {
+		 mint(m);
+		 if (m.error == null && m.existed) {
+			 // not in the ledger, so what it has now isn't known
+			 update(m, null);
+		 }
+	 } else {
+		 m.handle = old.getHandle();
+		 update(m, old);
+		 if (m.missing) {
+			 // deleted from the server since it went in the ledger
+			 log.info("Handle for " + m.oid + " has gone, creating it again");
+			 m.missing = false;
+			 m.updated = false;
+			 mint(m);
+			 if (m.error == null && m.existed) {
+				 update(m, null);
+			 }
+		 }
+	 }
+	 if (m.error == null) {
+		 ledger.put(m.oid, m.handle, m.url, m.description);
+	 }
+ }
+
+
+ /* update - changes the values which are different from the ledger's,
+  * or all of them if old is null
+  */
+
+ private void update(Mint m, HandleLedger.Entry old) {
+	 byte[] handleBytes;
+	 try {
+		 handleBytes = handleFor(m.oid).getBytes("UTF8");
+	 } catch (Exception e) {
+		 m.error = e;
+		 return;
+	 }
+	 if (old == null || !old.getHash().equals(HandleLedger.hash(m.description))) {
+		 HandleValue descVal = getDescHandleValue(m.description);
+		 if (descVal == null || !setValue(m, handleBytes, descVal)) {
+			 return;
+		 }
+	 }
+	 boolean urlChanged = ( old == null ) || ( old.getUrl() == null ? m.url != null : !old.getUrl().equals(m.url) );
+	 if (urlChanged) {
+		 if (m.url != null) {
+			 HandleValue urlVal = getUrlHandleValue(m.url);
+			 if (urlVal == null || !setValue(m, handleBytes, urlVal)) {
+				 return;
+			 }
+		 } else {
+			 int code = send(new RemoveValueRequest(handleBytes, URL_INDEX, authentication), m);
+			 if (code == AbstractMessage.RC_HANDLE_NOT_FOUND) {
+				 m.missing = true;
+				 return;
+			 }
+			 if (!check(m, code, AbstractMessage.RC_VALUES_NOT_FOUND)) {
+				 return;
+			 }
+		 }
+	 }
+	 m.updated = true;
+ }
+
+
+ /* setValue - modifies the value, or adds it if the handle hasn't got 
+  * one at that index.  If there's no such handle, marks the Mint as
+  * missing rather than failed.
+  */
+
+ private boolean setValue(Mint m, byte[] handleBytes, HandleValue value) {
+	 int code = send(new ModifyValueRequest(handleBytes, value, authentication), m);
+	 if (code == AbstractMessage.RC_HANDLE_NOT_FOUND) {
+		 m.missing = true;
+		 return false;
+	 }
+	 if (code == AbstractMessage.RC_VALUES_NOT_FOUND) {
+		 code = send(new AddValueRequest(handleBytes, value, authentication), m);
+	 }
+	 return check(m, code, AbstractMessage.RC_SUCCESS);
+ }
+
+
+ /* check - whether code is success (or the other code given, which 
+  * is as good), setting the Mint's error if not
+  */
+
+ private boolean check(Mint m, int code, int alsoOk) {
+	 if (code == AbstractMessage.RC_SUCCESS || code == alsoOk) {
+		 return true;
+	 }
+	 if (code >= 0) {
+		 m.error = new Exception("Error updating handle for " + m.oid + ": " 
+				 + AbstractMessage.getResponseCodeMessage(code));
+	 }
+	 return false;
+ }
+
+
+ /* send - sends a request, retrying transient failures, and returns 
+  * the response code, or -1 (with the Mint's error set) if it couldn't
+  * get a response
+  */
+
+ private int send(AbstractRequest req, Mint m) {
+	 long wait = retryBackoff;
+	 int tries = 0;
+	 while (true) {
+		 m.attempts++;
+		 tries++;
+		 Exception error;
+		 try {
+			 int code = resolver.processRequest(req).responseCode;
+			 if (!isTransient(code) || tries > maxRetries) {
+				 return code;
+			 }
+			 error = new Exception(AbstractMessage.getResponseCodeMessage(code));
+		 } catch (HandleException e) {
+			 if (!isTransient(e) || tries > maxRetries) {
+				 m.error = e;
+				 return -1;
+			 }
+			 error = e;
+		 }
+		 log.debug("Retrying " + m.oid + " in " + wait + " ms: " + error.getMessage());
+		 try {
+			 // +/- 25% so that a burst of retries doesn't come back together
+			 long sleep;
+			 synchronized (jitter) {
+				 sleep = wait * 3 / 4 + (long)(jitter.nextDouble() * wait / 2);
+			 }
+			 Thread.sleep(sleep);
+		 } catch (InterruptedException e) {
+			 Thread.currentThread().interrupt();
+			 m.error = error;
+			 return -1;
+		 }
+		 wait = Math.min(wait * 2, MAX_BACKOFF);
+	 }
+ }
+
+
+ private static boolean isTransient(int responseCode) {
+	 return responseCode == AbstractMessage.RC_SERVER_TOO_BUSY
+		 || responseCode == AbstractMessage.RC_SERVER_NOT_RESP
+		 || responseCode == AbstractMessage.RC_SERVER_BACKUP
+		 || responseCode == AbstractMessage.RC_AUTHEN_TIMEOUT
+		 || responseCode == AbstractMessage.RC_SESSION_TIMEOUT;
+ }
+
+
+ private static boolean isTransient(HandleException e) {
+	 int code = e.getCode();
+	 return code == HandleException.CANNOT_CONNECT_TO_SERVER
+		 || code == HandleException.SERVICE_NOT_FOUND
+		 || code == HandleException.SERVER_ERROR
+		 || code == HandleException.SESSION_TIMEOUT;
+ }
+
+
+/* handleFor - the handle (without the base URL) for an object */
+
+ private String handleFor(String oid) throws Exception {
+	 	String suffix;
+	 	try {
+	 		 	suffix = encryptID(oid);
+	 	} catch( Exception e) {
+            throw new Exception("Error building the handle suffix");
+        }
+	 	return namingAuthority + "/" + suffix;
+ }
+
+
+/* buildRequest - the create request for an object, with the admin 
+ * value built in init()
+ */
+
+ private CreateHandleRequest buildRequest(String oid, String description, String url) throws Exception {
+
+        String handle = handleFor(oid);
+        byte[] handleBytes = null;
+        try {
+            handleBytes = handle.getBytes("UTF8");
+        } catch (Exception ex) {
+            throw new Exception(
+                    "Invalid encoding for handle: '" + handle + "'", ex);
+        }
+
+        // Prepare the data going to be used inside the handle
+        HandleValue descVal = getDescHandleValue(description);
+        if( descVal == null) {
+            throw new Exception("Error creating HandleValues: description");
+        }
+
+        HandleValue[] values = {adminValue, descVal};
+        // Has URL - modify the array
+        if (url != null) {
+            HandleValue urlVal = getUrlHandleValue(url);
+            if (urlVal == null) {
+                throw new Exception("Error creating HandleValue: URL");
+            }
+            values = new HandleValue[] {adminValue, descVal, urlVal};
+        }
+
+        // Now prepare the actualy creationg request for sending
+        return new CreateHandleRequest(handleBytes, values, authentication);
+ }
+
+
+ private String suffixOf(AbstractRequest req) {
+	 String handle = Util.decodeString(req.handle);
+	 return handle.substring(handle.indexOf('/') + 1);
+ }
+
+ 	/* encryptID: take a unique ID and anonymise it, as the MD5 of the
+ 	 * ID in lowercase hex, so that the same ID always gets the same
+ 	 * URL-safe suffix
  	 * 
  	 * @params id - the unique ID
  	 */
  
  
  	private String encryptID(String id) throws Exception {
- 		byte[] idbytes;
- 		byte[] hash;
- 		
  		try {
- 			idbytes = id.getBytes("UTF8");
  			MessageDigest md = MessageDigest.getInstance("MD5");
- 			md.update(idbytes);
- 			hash = md.digest();
- 			String hashStr = new String(hash, "UTF8");
- 			return hashStr;
- 			 
+ 			return hex(md.digest(id.getBytes("UTF8")));
  		} catch ( Exception e ) {
  			log.error("ID encryption error");
  			throw e;
  		}		
  	}
 
+
+ 	/* hex - lowercase hex digits for some bytes */
+
+ 	static String hex(byte[] bytes) {
+ 		StringBuilder b = new StringBuilder(bytes.length * 2);
+ 		for( int i = 0; i < bytes.length; i++ ) {
+ 			b.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16));
+ 			b.append(Character.forDigit(bytes[i] & 0xF, 16));
+ 		}
+ 		return b.toString();
+ 	}
+
     
     /** The following methods more or less left unchanged from HandleTransformer */
     
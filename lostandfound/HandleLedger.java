@@ -0,0 +1,151 @@
+package mintIntegration;
+
+/* A local record of the handles which have been minted, for 
+ * HandleAdmin.reconcile.
+ *
+ * Kept as a tab-separated file, one line per object:
+ *
+ *   oid  handle  url  description-hash
+ *
+ * so that a run can tell which handles are already up to date without
+ * asking the handle server.  The description is only kept as a hash.
+ * Saved to a temporary file which is renamed into place, so a run 
+ * which dies part way leaves the last complete ledger.
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+public class HandleLedger {
+
+    private static Logger log = LoggerFactory.getLogger(HandleLedger.class);
+
+    private File file;
+    private ConcurrentHashMap<String, Entry> entries;
+
+
+    public static class Entry {
+    	String handle;
+    	String url;
+    	String hash;
+
+    	Entry(String handle, String url, String hash) {
+    		this.handle = handle;
+    		this.url = url;
+    		this.hash = hash;
+    	}
+
+    	public String getHandle() { return handle; }
+    	public String getUrl() { return url; }
+    	public String getHash() { return hash; }
+    }
+
+
+	/* HandleLedger - loads the ledger from file, which needn't exist yet */
+
+	HandleLedger(File file) throws IOException {
+		this.file = file;
+		entries = new ConcurrentHashMap<String, Entry>();
+		if( file.exists() ) {
+			load();
+		}
+	}
+
+
+	private void load() throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while( (line = in.readLine()) != null ) {
+				String[] f = line.split("\t", -1);
+				if( f.length != 4 ) {
+					log.warn("Bad line in handle ledger " + file + ": " + line);
+					continue;
+				}
+				entries.put(f[0], new Entry(f[1], f[2].length() == 0 ? null : f[2], f[3]));
+			}
+		} finally {
+			in.close();
+		}
+		log.info("Loaded " + entries.size() + " handles from " + file);
+	}
+
+
+	public synchronized void save() throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+		boolean ok = false;
+		try {
+			for( String oid: entries.keySet() ) {
+				Entry e = entries.get(oid);
+				out.write(oid);
+				out.write('\t');
+				out.write(e.handle);
+				out.write('\t');
+				out.write(e.url == null ? "" : e.url);
+				out.write('\t');
+				out.write(e.hash);
+				out.write('\n');
+			}
+			ok = true;
+		} finally {
+			out.close();
+			if( !ok ) {
+				temp.delete();
+			}
+		}
+		FileUtil.replace(temp, file);
+	}
+
+
+	public Entry get(String oid) {
+		return entries.get(oid);
+	}
+
+
+	public void put(String oid, String handle, String url, String description) {
+		entries.put(oid, new Entry(handle, url, hash(description)));
+	}
+
+
+	public int size() {
+		return entries.size();
+	}
+
+
+	/* isCurrent - the ledger has this handle with this URL and description */
+
+	public boolean isCurrent(String oid, String url, String description) {
+		Entry e = entries.get(oid);
+		if( e == null ) {
+			return false;
+		}
+		boolean same_url = ( e.url == null ) ? url == null : e.url.equals(url);
+		return same_url && e.hash.equals(hash(description));
+	}
+
+
+	/* hash - hex SHA-1 of the UTF-8 text */
+
+	public static String hash(String text) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			byte[] h = md.digest(( text == null ? "" : text ).getBytes("UTF-8"));
+			return HandleAdmin.hex(h);
+		} catch( Exception e ) {
+			throw new RuntimeException("Couldn't hash description", e);
+		}
+	}
+}
@@ -0,0 +1,331 @@
+package mintIntegration;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.handle.hdllib.AbstractMessage;
+import net.handle.hdllib.AbstractRequest;
+import net.handle.hdllib.AbstractResponse;
+import net.handle.hdllib.AddValueRequest;
+import net.handle.hdllib.CreateHandleRequest;
+import net.handle.hdllib.ErrorResponse;
+import net.handle.hdllib.GenericResponse;
+import net.handle.hdllib.HandleException;
+import net.handle.hdllib.HandleResolver;
+import net.handle.hdllib.HandleValue;
+import net.handle.hdllib.ModifyValueRequest;
+import net.handle.hdllib.RemoveValueRequest;
+import net.handle.hdllib.Util;
+
+/* TestHandleMint - runs HandleAdmin.mintAll against a stand-in handle
+ * server, which takes a while to answer each request, is sometimes too
+ * busy, and already has some of the handles, and checks that every 
+ * handle ends up minted with no more than maxInFlight requests at once.
+ * Then checks that HandleAdmin.reconcile only sends requests for the
+ * handles which have changed.
+ *
+ * Usage: TestHandleMint [handles] [maxInFlight]  (defaults: 500, 16)
+ */
+
+public class TestHandleMint {
+
+    private static Logger log = LoggerFactory.getLogger(TestHandleMint.class);
+
+	public static void main(String[] args) throws Exception {
+		int n = ( args.length > 0 ) ? Integer.parseInt(args[0]) : 500;
+		int in_flight = ( args.length > 1 ) ? Integer.parseInt(args[1]) : 16;
+
+		// a throwaway key, in the handle library's file format
+		KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+		gen.initialize(1024);
+		KeyPair pair = gen.generateKeyPair();
+		File key = File.createTempFile("admpriv", ".bin");
+		key.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(key);
+		out.write(Util.encrypt(Util.getBytesFromPrivateKey(pair.getPrivate()), null));
+		out.close();
+
+		BaseConfiguration conf = new BaseConfiguration();
+		conf.setProperty("namingAuthority", "11057");
+		conf.setProperty("privateKeyPath", key.getPath());
+		conf.setProperty("maxInFlight", Integer.toString(in_flight));
+		conf.setProperty("retryBackoff", "10");
+
+		MockServer server = new MockServer();
+		HandleAdmin admin = new HandleAdmin(conf, server);
+
+		ArrayList<HandleAdmin.Mint> mints = new ArrayList<HandleAdmin.Mint>();
+		for( int i = 0; i < n; i++ ) {
+			mints.add(new HandleAdmin.Mint("oid-" + i, "Person " + i, "http://example.org/" + i));
+		}
+		// a tenth of them are there already
+		for( int i = 0; i < n; i += 10 ) {
+			admin.createHandle("oid-" + i, "x", null);
+		}
+		server.flaky = true;
+
+		final AtomicInteger done = new AtomicInteger();
+		long start = System.currentTimeMillis();
+		int failed = admin.mintAll(mints.iterator(), new HandleAdmin.MintListener() {
+			public void done(HandleAdmin.Mint m) {
+				done.incrementAndGet();
+			}
+		});
+		long elapsed = System.currentTimeMillis() - start;
+
+		int existed = 0;
+		int retried = 0;
+		for( HandleAdmin.Mint m: mints ) {
+			if( m.existed() ) {
+				existed++;
+			}
+			if( m.getAttempts() > 1 ) {
+				retried++;
+			}
+		}
+		log.info(n + " handles in " + elapsed + " ms (serially about " + (n * MockServer.LATENCY) 
+				+ " ms): " + failed + " failed, " + existed + " already there, " + retried 
+				+ " retried, at most " + server.max_active + " in flight");
+		boolean ok = failed == 0 && done.get() == n && existed == (n + 9) / 10 
+			&& server.max_active <= in_flight && server.handles.size() == n;
+		ok = reconcile(admin, server, n) && ok;
+		ok = interrupted(admin, n) && ok;
+		if( !ok ) {
+			throw new IllegalStateException("Handle minting check failed");
+		}
+		log.info("OK");
+	}
+
+
+	/* reconcile - mints n handles into an empty ledger, runs again with
+	 * nothing changed, then with some URLs and descriptions changed,
+	 * then again without the ledger, then with some handles deleted from
+	 * the server and their URLs changed, and checks the server's values
+	 * and how many requests each run took
+	 */
+
+	static boolean reconcile(HandleAdmin admin, MockServer server, int n) throws Exception {
+		File file = File.createTempFile("ledger", ".tsv");
+		file.delete();
+		String[] desc = new String[n];
+		String[] url = new String[n];
+		for( int i = 0; i < n; i++ ) {
+			desc[i] = "Person " + i;
+			url[i] = "http://example.org/r" + i;
+		}
+		boolean ok = true;
+		int[] expected = { n, 0, 0, 0, 0 };
+		String[] handles = new String[n];
+		for( int run = 0; run < 5; run++ ) {
+			if( run == 2 ) {
+				// 10% new URLs, 5% new descriptions, 2% URLs dropped
+				for( int i = 0; i < n; i++ ) {
+					if( i % 10 == 1 ) {
+						url[i] = url[i] + "/moved";
+						expected[2]++;
+					}
+					if( i % 20 == 2 ) {
+						desc[i] = "Dr " + desc[i];
+						expected[2]++;
+					}
+					if( i % 50 == 3 ) {
+						url[i] = null;
+						expected[2]++;
+					}
+				}
+			}
+			if( run == 3 ) {
+				// a lost ledger: every create finds the handle, and sets
+				// the description and URL (add or remove for URLs which
+				// aren't there or are)
+				file.delete();
+				expected[3] = n * 3;
+			}
+			if( run == 4 ) {
+				// the modify finds no handle, and it's created again
+				for( int i = 0; i < n; i += 25 ) {
+					url[i] = "http://example.org/back" + i;
+					server.handles.remove(handles[i]);
+					expected[4] += 2;
+				}
+			}
+			HandleLedger ledger = new HandleLedger(file);
+			ArrayList<HandleAdmin.Mint> mints = new ArrayList<HandleAdmin.Mint>();
+			for( int i = 0; i < n; i++ ) {
+				mints.add(new HandleAdmin.Mint("r-" + i, desc[i], url[i]));
+			}
+			server.calls.set(0);
+			int failed = admin.reconcile(mints.iterator(), ledger, null);
+			int requests = server.calls.get();
+			boolean values_ok = true;
+			for( int i = 0; i < n; i++ ) {
+				Map<Integer, String> v = server.handles.get(handle(mints.get(i)));
+				if( v == null || !desc[i].equals(v.get(300)) || !eq(url[i], v.get(3)) ) {
+					values_ok = false;
+				}
+				handles[i] = handle(mints.get(i));
+			}
+			log.info("Reconcile run " + run + ": " + requests + " requests (expected about " 
+					+ expected[run] + "), " + failed + " failed, values " + ( values_ok ? "OK" : "WRONG" ));
+			// busy answers add retries, so allow for some
+			ok = ok && failed == 0 && values_ok && requests >= expected[run] 
+				&& ( run == 1 ? requests == 0 : requests <= expected[run] * 2 );
+		}
+		file.delete();
+		return ok;
+	}
+
+
+	/* interrupted - a run whose iterator blows up part way must still
+	 * wait for the requests it sent, and save all of them in the ledger
+	 */
+
+	static boolean interrupted(HandleAdmin admin, int n) throws Exception {
+		File file = File.createTempFile("ledger", ".tsv");
+		file.delete();
+		ArrayList<HandleAdmin.Mint> mints = new ArrayList<HandleAdmin.Mint>();
+		for( int i = 0; i < n / 2; i++ ) {
+			mints.add(new HandleAdmin.Mint("x-" + i, "Thing " + i, "http://example.org/x" + i));
+		}
+		// says there's more, and then fails when it runs out
+		final Iterator<HandleAdmin.Mint> source = mints.iterator();
+		Iterator<HandleAdmin.Mint> it = new Iterator<HandleAdmin.Mint>() {
+			public boolean hasNext() {
+				return true;
+			}
+			public HandleAdmin.Mint next() {
+				if( !source.hasNext() ) {
+					throw new RuntimeException("source went away");
+				}
+				return source.next();
+			}
+			public void remove() {
+				source.remove();
+			}
+		};
+		boolean threw = false;
+		try {
+			admin.reconcile(it, new HandleLedger(file), null);
+		} catch( RuntimeException e ) {
+			threw = true;
+		}
+		int ok_mints = 0;
+		for( HandleAdmin.Mint m: mints ) {
+			if( m.getHandle() != null && m.getError() == null ) {
+				ok_mints++;
+			}
+		}
+		int saved = new HandleLedger(file).size();
+		file.delete();
+		log.info("Interrupted reconcile: " + ok_mints + " of " + mints.size() 
+				+ " minted, " + saved + " in the saved ledger");
+		return threw && ok_mints == n / 2 && saved == ok_mints;
+	}
+
+
+	static String handle(HandleAdmin.Mint m) {
+		return m.getHandle().replaceFirst("^http://[^/]*/", "");
+	}
+
+
+	static boolean eq(String a, String b) {
+		return ( a == null ) ? b == null : a.equals(b);
+	}
+
+
+	/* MockServer - keeps handles' values in memory, answers requests 
+	 * after LATENCY ms, and when flaky turns every seventh one away as
+	 * too busy the first time
+	 */
+
+	static class MockServer extends HandleResolver {
+
+		static int LATENCY = 20;
+
+		Map<String, Map<Integer, String>> handles = new ConcurrentHashMap<String, Map<Integer, String>>();
+		Set<String> busy = Collections.synchronizedSet(new HashSet<String>());
+		AtomicInteger calls = new AtomicInteger();
+		volatile boolean flaky = false;
+		AtomicInteger active = new AtomicInteger();
+		volatile int max_active = 0;
+
+		public AbstractResponse processRequest(AbstractRequest req) throws HandleException {
+			int a = active.incrementAndGet();
+			synchronized( this ) {
+				max_active = Math.max(max_active, a);
+			}
+			try {
+				Thread.sleep(LATENCY);
+				String handle = Util.decodeString(req.handle);
+				int call = calls.incrementAndGet();
+				if( flaky && call % 7 == 0 && busy.add(handle + req.getClass().getName()) ) {
+					return new ErrorResponse(req, AbstractMessage.RC_SERVER_TOO_BUSY, null);
+				}
+				return new GenericResponse(req, apply(handle, req));
+			} catch( InterruptedException e ) {
+				throw new HandleException(HandleException.INTERNAL_ERROR, e);
+			} finally {
+				active.decrementAndGet();
+			}
+		}
+
+		synchronized int apply(String handle, AbstractRequest req) throws HandleException {
+			Map<Integer, String> values = handles.get(handle);
+			if( req instanceof CreateHandleRequest ) {
+				if( values != null ) {
+					return AbstractMessage.RC_HANDLE_ALREADY_EXISTS;
+				}
+				values = new HashMap<Integer, String>();
+				for( HandleValue v: ((CreateHandleRequest)req).values ) {
+					values.put(v.getIndex(), v.getDataAsString());
+				}
+				handles.put(handle, values);
+				return AbstractMessage.RC_SUCCESS;
+			}
+			if( values == null ) {
+				return AbstractMessage.RC_HANDLE_NOT_FOUND;
+			}
+			if( req instanceof ModifyValueRequest || req instanceof AddValueRequest ) {
+				HandleValue[] vs = ( req instanceof ModifyValueRequest ) 
+					? ((ModifyValueRequest)req).values : ((AddValueRequest)req).values;
+				for( HandleValue v: vs ) {
+					boolean has = values.containsKey(v.getIndex());
+					if( req instanceof ModifyValueRequest && !has ) {
+						return AbstractMessage.RC_VALUES_NOT_FOUND;
+					}
+					if( req instanceof AddValueRequest && has ) {
+						return AbstractMessage.RC_VALUE_ALREADY_EXISTS;
+					}
+				}
+				for( HandleValue v: vs ) {
+					values.put(v.getIndex(), v.getDataAsString());
+				}
+				return AbstractMessage.RC_SUCCESS;
+			}
+			if( req instanceof RemoveValueRequest ) {
+				for( int i: ((RemoveValueRequest)req).indexes ) {
+					if( values.remove(i) == null ) {
+						return AbstractMessage.RC_VALUES_NOT_FOUND;
+					}
+				}
+				return AbstractMessage.RC_SUCCESS;
+			}
+			return AbstractMessage.RC_OPERATION_NOT_SUPPORTED;
+		}
+	}
+}
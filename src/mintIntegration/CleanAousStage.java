@@ -0,0 +1,81 @@
+package mintIntegration;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* CleanAousStage - clean_aous from pp1: drops AOUs whose name matches
+ * <groupTidy><ignore>, and research strengths, cuts names at a '|' and
+ * drops a "Faculty." style prefix from divisions.
+ *
+ * Whether an AOU's parent exists is checked against the AOUs as they
+ * were before any were dropped, so the result doesn't depend on the
+ * order they're in.
+ */
+
+public class CleanAousStage implements Stage {
+
+    private static Logger log = LoggerFactory.getLogger(CleanAousStage.class);
+
+	private static Pattern RESEARCH_STRENGTH = Pattern.compile("^RS|Associate|Member|Core");
+	private static Pattern PREFIX = Pattern.compile("^([A-Za-z ]+)\\.(.*)$");
+
+	private Pattern ignore;
+
+
+	CleanAousStage(Configuration conf) {
+		String re = conf.getString("groupTidy.ignore");
+		if( re != null ) {
+			ignore = Pattern.compile(re);
+		}
+	}
+
+
+	public RecordStore apply(RecordStore records, PostProcess pp) {
+		int name_col = records.column("Name");
+		int parent_col = records.column("Parent_Group_ID");
+		int[] keep = new int[records.size()];
+		int n = 0;
+
+		for( int r = 0; r < records.size(); r++ ) {
+			String id = records.key(r);
+			String name = records.get(r, name_col);
+			if( name == null ) {
+				name = "";
+			}
+			if( ignore != null && ignore.matcher(name).find() ) {
+				log.info("Ignoring AOU " + id + " " + name);
+				continue;
+			}
+			int bar = name.indexOf('|');
+			if( bar >= 0 ) {
+				name = name.substring(0, bar);
+				log.warn("Split AOU with |: '" + name + "'");
+			}
+			String parent = records.get(r, parent_col);
+			if( parent != null && parent.length() > 0 && !records.containsKey(parent) ) {
+				log.warn("AOU " + id + " - " + name + " parent group ID " + parent + " not found.");
+			} else {
+				if( RESEARCH_STRENGTH.matcher(name).find() ) {
+					log.debug("Removing RS '" + name + "'");
+					continue;
+				}
+				Matcher m = PREFIX.matcher(name);
+				if( m.matches() ) {
+					log.debug("Dropping prefix " + m.group(1) + " from " + m.group(2));
+					name = m.group(2);
+				}
+			}
+			records.set(r, name_col, name);
+			keep[n++] = r;
+		}
+
+		if( n == records.size() ) {
+			return records;
+		}
+		return records.select(keep, n);
+	}
+}
@@ -0,0 +1,65 @@
+package mintIntegration;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* ConnectionPool - a small fixed set of database connections shared
+ * between feeds which are running concurrently.  A feed takes a 
+ * connection, runs its query and then releases it for the next one.
+ */
+
+public class ConnectionPool {
+
+    private static Logger log = LoggerFactory.getLogger(ConnectionPool.class);
+
+	private BlockingQueue<Connection> idle;
+	private ArrayList<Connection> all;
+	
+	ConnectionPool(int size) {
+		idle = new ArrayBlockingQueue<Connection>(size);
+		all = new ArrayList<Connection>(size);
+	}
+	
+	
+	/* add - put a newly opened connection into the pool */
+	
+	public void add(Connection con) {
+		all.add(con);
+		idle.add(con);
+	}
+	
+	
+	public int size() {
+		return all.size();
+	}
+	
+	
+	/* take - wait for a free connection */
+	
+	public Connection take() throws InterruptedException {
+		return idle.take();
+	}
+	
+	
+	public void release(Connection con) {
+		idle.add(con);
+	}
+	
+	
+	public void close() {
+		for( Connection con: all ) {
+			try {
+				con.close();
+			} catch( Exception e ) {
+				log.warn("Error closing connection", e);
+			}
+		}
+		all.clear();
+		idle.clear();
+	}
+}
@@ -0,0 +1,411 @@
+package mintIntegration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* CrosswalkStage - sets a field on each of a query's records by
+ * following a chain of joins to other queries' records and ending with
+ * a lookup table from the config, such as person -> AOU -> faculty URL:
+ *
+ * <stage type="crosswalk" query="People" field="Staff_Profile_Homepage" require="Email_Prefix">
+ *   <filter field="Staff_Type" exclude="^Casual"/>
+ *   <join key="GroupID_1" query="Groups"/>
+ *   <join key="Parent_Group_ID" table="landingPageURLs.faculty" ancestors="1"/>
+ *   <param name="ID" field="Email_Prefix"/>
+ * </stage>
+ *
+ * Each join looks up the value of key, a field of the record or of the
+ * row the last join found, in another query's records or in a table of
+ * the elements at a config path, by their code attribute.  The last
+ * join must be a table, whose entries are templates rendered against
+ * the record with $NAME for a field (or for the field a <param> maps it
+ * to), or a query join with value="FIELD" to copy one of its fields.
+ * ancestors="1" on a table after a join to groups goes up the group
+ * hierarchy until it finds an entry.
+ *
+ * The tables, templates and filter patterns are all compiled when the
+ * config is loaded.  Records are matched in one pass: the first join
+ * is a hash lookup, and what every later join finds for a row of the
+ * previous one is worked out once and kept, so a thousand people in
+ * the same AOU cost one faculty lookup.  Records which don't match are
+ * left as they are, and counted for each join, rather than warned
+ * about one by one.
+ */
+
+public class CrosswalkStage implements Stage {
+
+    private static Logger log = LoggerFactory.getLogger(CrosswalkStage.class);
+
+	/* how many unmatched keys to list for each join */
+	private static int EXAMPLES = 10;
+
+	private static int UNKNOWN = -2;
+	private static Template MISSING = Template.literal("");
+
+	private String field;
+	private String require;
+	private ArrayList<Join> joins;
+	private ArrayList<Filter> filters;
+	private HashMap<String, String> params;
+
+
+	static class Join {
+		String key;
+		String query;
+		String table;
+		String value;
+		boolean ancestors;
+		HashMap<String, Template> entries;
+
+		public String toString() {
+			return key + " in " + ( query != null ? query : table );
+		}
+	}
+
+
+	static class Filter {
+		String field;
+		Matcher matcher;
+		boolean exclude;
+	}
+
+
+	CrosswalkStage(String field) {
+		this.field = field;
+		joins = new ArrayList<Join>();
+		filters = new ArrayList<Filter>();
+		params = new HashMap<String, String>();
+	}
+
+
+	/* fromConfig - conf is the whole config, for the tables, and sconf
+	 * is the <stage>
+	 */
+
+	public static CrosswalkStage fromConfig(Configuration conf, Configuration sconf) throws ConfigurationException {
+		String field = sconf.getString("[@field]");
+		if( field == null ) {
+			throw new ConfigurationException("Crosswalk stage needs a field");
+		}
+		CrosswalkStage stage = new CrosswalkStage(field);
+		stage.require = sconf.getString("[@require]");
+		int n = sconf.getList("filter[@field]").size();
+		for( int i = 0; i < n; i++ ) {
+			String prefix = "filter(" + i + ")";
+			String match = sconf.getString(prefix + "[@match]");
+			String exclude = sconf.getString(prefix + "[@exclude]");
+			if( (match == null) == (exclude == null) ) {
+				throw new ConfigurationException("Crosswalk filter needs one of match or exclude");
+			}
+			stage.addFilter(sconf.getString(prefix + "[@field]"), match != null ? match : exclude, exclude != null);
+		}
+		n = sconf.getList("join[@key]").size();
+		for( int i = 0; i < n; i++ ) {
+			String prefix = "join(" + i + ")";
+			String query = sconf.getString(prefix + "[@query]");
+			String table = sconf.getString(prefix + "[@table]");
+			if( (query == null) == (table == null) ) {
+				throw new ConfigurationException("Crosswalk join needs one of query or table");
+			}
+			if( query != null ) {
+				stage.addJoin(sconf.getString(prefix + "[@key]"), query, sconf.getString(prefix + "[@value]"));
+			} else {
+				stage.addTable(sconf.getString(prefix + "[@key]"), conf, table, sconf.getString(prefix + "[@ancestors]") != null);
+			}
+		}
+		n = sconf.getList("param[@name]").size();
+		for( int i = 0; i < n; i++ ) {
+			stage.addParam(sconf.getString("param(" + i + ")[@name]"), sconf.getString("param(" + i + ")[@field]"));
+		}
+		stage.check();
+		return stage;
+	}
+
+
+	/* profileUrls - make_urls from pp1: a person's URL is the template
+	 * for the faculty of their first AOU, from its Parent_Group_ID or
+	 * the nearest ancestor's, with $ID replaced by their urlID field.
+	 */
+
+	public static CrosswalkStage profileUrls(Configuration conf, String groups) throws ConfigurationException {
+		String url_id = conf.getString("landingPageURLs[@urlID]");
+		CrosswalkStage stage = new CrosswalkStage("Staff_Profile_Homepage");
+		stage.require = url_id;
+		stage.addJoin("GroupID_1", groups, null);
+		stage.addTable("Parent_Group_ID", conf, "landingPageURLs.faculty", true);
+		stage.addParam("ID", url_id);
+		stage.check();
+		return stage;
+	}
+
+
+	public void addFilter(String field, String regex, boolean exclude) {
+		Filter f = new Filter();
+		f.field = field;
+		f.matcher = Pattern.compile(regex).matcher("");
+		f.exclude = exclude;
+		filters.add(f);
+	}
+
+
+	public void addJoin(String key, String query, String value) {
+		Join j = new Join();
+		j.key = key;
+		j.query = query;
+		j.value = value;
+		joins.add(j);
+	}
+
+
+	/* addTable - the entries are the elements at path, keyed by their
+	 * code attribute, with each one's text compiled as a template
+	 */
+
+	public void addTable(String key, Configuration conf, String path, boolean ancestors) throws ConfigurationException {
+		Join j = new Join();
+		j.key = key;
+		j.table = path;
+		j.ancestors = ancestors;
+		j.entries = new HashMap<String, Template>();
+		int n = conf.getList(path).size();
+		for( int i = 0; i < n; i++ ) {
+			String code = conf.getString(path + "(" + i + ")[@code]");
+			if( code == null ) {
+				throw new ConfigurationException("Crosswalk table " + path + " entry " + i + " has no code");
+			}
+			j.entries.put(code, new Template(conf.getString(path + "(" + i + ")")));
+		}
+		if( j.entries.isEmpty() ) {
+			throw new ConfigurationException("Crosswalk table " + path + " is empty");
+		}
+		joins.add(j);
+	}
+
+
+	public void addParam(String name, String field) {
+		params.put(name, field);
+	}
+
+
+	/* getQueries - the queries which the joins read */
+
+	public List<String> getQueries() {
+		ArrayList<String> queries = new ArrayList<String>();
+		for( Join j: joins ) {
+			if( j.query != null ) {
+				queries.add(j.query);
+			}
+		}
+		return queries;
+	}
+
+
+	private void check() throws ConfigurationException {
+		if( joins.isEmpty() ) {
+			throw new ConfigurationException("Crosswalk stage for " + field + " has no joins");
+		}
+		for( int i = 0; i < joins.size(); i++ ) {
+			Join j = joins.get(i);
+			boolean last = ( i == joins.size() - 1 );
+			if( j.key == null ) {
+				throw new ConfigurationException("Crosswalk join " + i + " has no key");
+			}
+			if( last != (j.table != null || j.value != null) ) {
+				throw new ConfigurationException("Crosswalk join " + j + ": only the last join, and it must, be a table or have a value");
+			}
+			if( j.ancestors && (i == 0 || joins.get(i - 1).query == null) ) {
+				throw new ConfigurationException("Crosswalk join " + j + ": ancestors needs a join to groups before it");
+			}
+		}
+	}
+
+
+	public RecordStore apply(RecordStore records, PostProcess pp) throws Exception {
+		int n = joins.size();
+		int out_col = column(records, field);
+		int require_col = ( require == null ) ? -1 : column(records, require);
+		int[] filter_cols = new int[filters.size()];
+		for( int f = 0; f < filter_cols.length; f++ ) {
+			filter_cols[f] = column(records, filters.get(f).field);
+		}
+
+		// context[j] is the store whose rows join j looks up from, and
+		// found[j] is what it found for each of them (past the first)
+		RecordStore[] context = new RecordStore[n + 1];
+		int[] key_cols = new int[n];
+		int[][] found = new int[n][];
+		Template[][] results = new Template[n][];
+		GroupHierarchy hierarchy = null;
+		int value_col = -1;
+		context[0] = records;
+		for( int j = 0; j < n; j++ ) {
+			Join join = joins.get(j);
+			key_cols[j] = column(context[j], join.key);
+			if( join.query != null ) {
+				context[j + 1] = pp.getRecords(join.query);
+				if( join.value != null ) {
+					value_col = column(context[j + 1], join.value);
+				}
+			}
+			if( join.ancestors ) {
+				hierarchy = pp.getHierarchy(joins.get(j - 1).query);
+			}
+			if( j > 0 ) {
+				found[j] = new int[context[j].size()];
+				Arrays.fill(found[j], UNKNOWN);
+				results[j] = new Template[context[j].size()];
+			}
+		}
+
+		HashMap<Template, int[]> template_cols = new HashMap<Template, int[]>();
+		long[] unmatched = new long[n];
+		ArrayList<LinkedHashMap<String, Integer>> examples = new ArrayList<LinkedHashMap<String, Integer>>();
+		for( int j = 0; j < n; j++ ) {
+			examples.add(new LinkedHashMap<String, Integer>());
+		}
+		long n_set = 0;
+		long n_filtered = 0;
+		long n_required = 0;
+
+		for( int r = 0; r < records.size(); r++ ) {
+			if( !accept(records, r, filter_cols) ) {
+				n_filtered++;
+				continue;
+			}
+			if( require_col >= 0 ) {
+				String v = records.get(r, require_col);
+				if( v == null || v.length() == 0 ) {
+					n_required++;
+					continue;
+				}
+			}
+			int row = r;
+			Template result = null;
+			String value = null;
+			for( int j = 0; j < n; j++ ) {
+				Join join = joins.get(j);
+				if( join.table == null ) {
+					int next = ( j > 0 ) ? found[j][row] : UNKNOWN;
+					if( next == UNKNOWN ) {
+						String key = context[j].get(row, key_cols[j]);
+						next = ( key == null ) ? -1 : context[j + 1].find(key);
+						if( j > 0 ) {
+							found[j][row] = next;
+						}
+					}
+					if( next < 0 ) {
+						miss(unmatched, examples, j, context[j].get(row, key_cols[j]));
+						break;
+					}
+					row = next;
+					if( join.value != null ) {
+						// a looked-up value is used as it is, so it needn't be a Template
+						value = context[j + 1].get(row, value_col);
+						result = ( value == null ) ? MISSING : null;
+					}
+				} else {
+					Template t = ( j > 0 ) ? results[j][row] : null;
+					if( t == null ) {
+						t = lookup(join, context[j], key_cols[j], row, hierarchy);
+						if( j > 0 ) {
+							results[j][row] = t;
+						}
+					}
+					if( t == MISSING ) {
+						miss(unmatched, examples, j, context[j].get(row, key_cols[j]));
+						break;
+					}
+					result = t;
+					value = null;
+				}
+			}
+			if( value != null ) {
+				records.set(r, out_col, value);
+				n_set++;
+			} else if( result != null && result != MISSING ) {
+				int[] cols = template_cols.get(result);
+				if( cols == null ) {
+					cols = result.columns(records, params);
+					template_cols.put(result, cols);
+				}
+				records.set(r, out_col, result.render(records, r, cols));
+				n_set++;
+			}
+		}
+
+		log.info("Crosswalk " + field + ": set for " + n_set + " of " + records.size() + " records");
+		if( n_filtered > 0 ) {
+			log.info("Crosswalk " + field + ": " + n_filtered + " records filtered out");
+		}
+		if( n_required > 0 ) {
+			log.warn("Crosswalk " + field + ": " + n_required + " records without " + require + " - skipped");
+		}
+		for( int j = 0; j < n; j++ ) {
+			if( unmatched[j] > 0 ) {
+				log.warn("Crosswalk " + field + ": " + unmatched[j] + " records with no match for " + joins.get(j)
+						+ ", keys (count): " + examples.get(j));
+			}
+		}
+		return records;
+	}
+
+
+	private boolean accept(RecordStore records, int r, int[] filter_cols) {
+		for( int f = 0; f < filter_cols.length; f++ ) {
+			Filter filter = filters.get(f);
+			String v = records.get(r, filter_cols[f]);
+			boolean found = filter.matcher.reset(v == null ? "" : v).find();
+			if( found == filter.exclude ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/* lookup - the table entry for a row's key, or its nearest ancestor's */
+
+	private Template lookup(Join join, RecordStore store, int key_col, int row, GroupHierarchy h) {
+		String key = store.get(row, key_col);
+		Template t = ( key == null ) ? null : join.entries.get(key);
+		if( t == null && h != null ) {
+			int[] ancestors = h.ancestors(row);
+			for( int i = 0; i < ancestors.length && t == null; i++ ) {
+				key = store.get(ancestors[i], key_col);
+				t = ( key == null ) ? null : join.entries.get(key);
+			}
+		}
+		return ( t == null ) ? MISSING : t;
+	}
+
+
+	private void miss(long[] unmatched, List<LinkedHashMap<String, Integer>> examples, int j, String key) {
+		unmatched[j]++;
+		LinkedHashMap<String, Integer> ex = examples.get(j);
+		Integer c = ex.get(key);
+		if( c != null ) {
+			ex.put(key, c + 1);
+		} else if( ex.size() < EXAMPLES ) {
+			ex.put(key, 1);
+		}
+	}
+
+
+	private int column(RecordStore store, String name) throws Exception {
+		int col = store.column(name);
+		if( col < 0 ) {
+			throw new Exception("Crosswalk " + field + ": no field " + name);
+		}
+		return col;
+	}
+}
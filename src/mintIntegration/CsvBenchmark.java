@@ -0,0 +1,112 @@
+package mintIntegration;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVStrategy;
+
+
+/* CsvBenchmark - writes the same rows with the old commons-csv
+ * CSVPrinter and with CsvWriter and prints how long each took.  The
+ * CSVPrinter goes through a FileWriter, as Feed's did, so its file is
+ * in the platform encoding; the sizes only match when that's UTF-8.
+ *
+ * Usage: CsvBenchmark [rows] [dir]  (defaults: 1000000, java.io.tmpdir)
+ */
+
+public class CsvBenchmark {
+
+	private static int COLUMNS = 24;
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) throws Exception {
+		int rows = 1000000;
+		String dir = System.getProperty("java.io.tmpdir");
+		if( args.length > 0 ) {
+			rows = Integer.parseInt(args[0]);
+		}
+		if( args.length > 1 ) {
+			dir = args[1];
+		}
+
+		String[][] sample = sampleRows(1000);
+
+		File old_file = new File(dir, "benchmark_csvprinter.csv");
+		File new_file = new File(dir, "benchmark_csvwriter.csv");
+
+		long start = System.currentTimeMillis();
+
+		CSVStrategy csv_settings = (CSVStrategy)CSVStrategy.DEFAULT_STRATEGY.clone();
+		csv_settings.setIgnoreTrailingWhitespaces(true);
+		FileWriter fw = new FileWriter(old_file);
+		CSVPrinter printer = new CSVPrinter(fw, csv_settings);
+		for( int i = 0; i < rows; i++ ) {
+			String[] row = sample[i % sample.length];
+			String[] csvline = new String[row.length];
+			System.arraycopy(row, 0, csvline, 0, row.length);
+			printer.println(csvline);
+		}
+		fw.close();
+
+		long old_ms = System.currentTimeMillis() - start;
+
+		start = System.currentTimeMillis();
+
+		CsvWriter writer = new CsvWriter(new_file);
+		for( int i = 0; i < rows; i++ ) {
+			String[] row = sample[i % sample.length];
+			for( int j = 0; j < row.length; j++ ) {
+				writer.field(row[j]);
+			}
+			writer.endRow();
+		}
+		writer.commit();
+
+		long new_ms = System.currentTimeMillis() - start;
+
+		System.out.println(rows + " rows x " + COLUMNS + " columns");
+		System.out.println("CSVPrinter: " + old_ms + " ms, " + old_file.length() + " bytes");
+		System.out.println("CsvWriter:  " + new_ms + " ms, " + new_file.length() + " bytes");
+
+		old_file.delete();
+		new_file.delete();
+	}
+
+
+	/* sampleRows - rows which look roughly like the People feed */
+
+	private static String[][] sampleRows(int n) {
+		String[][] rows = new String[n][];
+		for( int i = 0; i < n; i++ ) {
+			String[] row = new String[COLUMNS];
+			for( int j = 0; j < COLUMNS; j++ ) {
+				switch( j % 6 ) {
+				case 0:
+					row[j] = Integer.toString(100000 + i);
+					break;
+				case 1:
+					row[j] = "Given" + i;
+					break;
+				case 2:
+					row[j] = "";
+					break;
+				case 3:
+					row[j] = "Faculty of Engineering, and IT";
+					break;
+				case 4:
+					row[j] = "080" + (i % 10);
+					break;
+				default:
+					row[j] = "A \"quoted\" description<br />over two lines of text, "
+						+ "with a caf\u00e9 and some more words " + i;
+				}
+			}
+			rows[i] = row;
+		}
+		return rows;
+	}
+
+}
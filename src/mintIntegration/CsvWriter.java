@@ -0,0 +1,337 @@
+package mintIntegration;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* CsvWriter - a buffered UTF-8 CSV writer.
+ *
+ * Values are encoded straight into a large byte buffer, and are quoted
+ * by the same rules as the CSVPrinter that Feed used to write with, so
+ * that Mint's harvester sees the same files: see needsQuotes().  Rows
+ * are built up with field() and finished with endRow(), so the caller
+ * doesn't need to allocate an array per row.
+ *
+ * Everything goes to a temporary file next to the target, which is
+ * renamed into place by commit(), so that Mint never sees a half-
+ * written harvest file.  abort() throws the temporary file away.
+ *
+ * A long streamed feed can checkpoint() the file, which makes sure that
+ * everything so far is on disk and returns its length.  If the run dies,
+ * suspend() (or the crash) leaves the temporary file where it is, and
+ * the next run can open it again at that length and carry on.
+ *
+ * The file can be gzipped, and a SHA-256 of the bytes which go to disk
+ * worked out as it's written.  Neither of these can be resumed.
+ */
+
+public class CsvWriter {
+
+    private static Logger log = LoggerFactory.getLogger(CsvWriter.class);
+
+    private static int BUFFER_SIZE = 1 << 20;
+
+	private File target;
+	private File temp;
+	private FileOutputStream file;
+	private OutputStream out;
+	private MessageDigest digest;
+	private String checksum;
+	private long bytes;
+	private byte[] buf;
+	private int pos;
+	private boolean first;
+	private long rows;
+
+
+	CsvWriter(File target) throws IOException {
+		this(target, false, false);
+	}
+
+
+	CsvWriter(File target, boolean gzip, boolean checksum) throws IOException {
+		this.target = target;
+		temp = new File(target.getPath() + ".tmp");
+		file = new FileOutputStream(temp);
+		out = file;
+		if( checksum ) {
+			try {
+				digest = MessageDigest.getInstance("SHA-256");
+			} catch( NoSuchAlgorithmException e ) {
+				file.close();
+				throw new IOException("No SHA-256", e);
+			}
+			out = new DigestOutputStream(out, digest);
+		}
+		if( gzip ) {
+			out = new GZIPOutputStream(out, 1 << 16);
+		}
+		buf = new byte[BUFFER_SIZE];
+		pos = 0;
+		first = true;
+		rows = 0;
+	}
+
+
+	/* CsvWriter - reopens the temporary file from an earlier run, cut
+	 * back to the length returned by its last checkpoint(), and appends
+	 * to it.  Throws an IOException if it's gone or shorter than that.
+	 */
+
+	CsvWriter(File target, long resume_at) throws IOException {
+		this.target = target;
+		temp = new File(target.getPath() + ".tmp");
+		if( !temp.exists() || temp.length() < resume_at ) {
+			throw new IOException("Can't resume " + temp + " at byte " + resume_at);
+		}
+		file = new FileOutputStream(temp, true);
+		file.getChannel().truncate(resume_at);
+		out = file;
+		buf = new byte[BUFFER_SIZE];
+		pos = 0;
+		first = true;
+		rows = 0;
+	}
+
+
+	public File getTarget() {
+		return target;
+	}
+
+
+	public long getRows() {
+		return rows;
+	}
+
+
+	/* getChecksum - the SHA-256 in hex, once committed, if it was asked for */
+
+	public String getChecksum() {
+		return checksum;
+	}
+
+
+	/* getBytes - the size of the file, once committed */
+
+	public long getBytes() {
+		return bytes;
+	}
+
+
+	public void field(String value) throws IOException {
+		boolean at_start = first;
+		if( !first ) {
+			put((byte)',');
+		}
+		first = false;
+		if( value == null || value.length() == 0 ) {
+			if( at_start ) {
+				// otherwise a row of one empty value is a blank line
+				put((byte)'"');
+				put((byte)'"');
+			}
+			return;
+		}
+		if( needsQuotes(value, at_start) ) {
+			put((byte)'"');
+			int len = value.length();
+			for( int i = 0; i < len; i++ ) {
+				char c = value.charAt(i);
+				if( c == '"' ) {
+					put((byte)'"');
+				}
+				i = putChar(value, i);
+			}
+			put((byte)'"');
+		} else {
+			int len = value.length();
+			for( int i = 0; i < len; i++ ) {
+				i = putChar(value, i);
+			}
+		}
+	}
+
+
+	public void endRow() throws IOException {
+		put((byte)'\n');
+		first = true;
+		rows++;
+	}
+
+
+	public void writeRow(String[] values) throws IOException {
+		for( int i = 0; i < values.length; i++ ) {
+			field(values[i]);
+		}
+		endRow();
+	}
+
+
+	/* commit - flush, close and move the file into place */
+
+	public void commit() throws IOException {
+		commit(null);
+	}
+
+
+	/* commit - as above, unless the checksum is previous and the target
+	 * is the same size, in which case the target is left alone, so that
+	 * its modified time doesn't change either.  Returns false if so.
+	 */
+
+	public boolean commit(String previous) throws IOException {
+		flush();
+		out.close();
+		out = null;
+		bytes = temp.length();
+		if( digest != null ) {
+			checksum = hex(digest.digest());
+		}
+		if( previous != null && previous.equals(checksum) 
+				&& target.exists() && target.length() == bytes ) {
+			if( !temp.delete() ) {
+				log.warn("Couldn't delete " + temp);
+			}
+			return false;
+		}
+		FileUtil.replace(temp, target);
+		return true;
+	}
+
+
+	/* checkpoint - flush and sync, and return the length of the file.
+	 * Only call this between rows.
+	 */
+
+	public long checkpoint() throws IOException {
+		flush();
+		file.getChannel().force(false);
+		return file.getChannel().position();
+	}
+
+
+	/* suspend - close the temporary file but leave it there, so that a
+	 * later run can resume it from a checkpoint
+	 */
+
+	public void suspend() {
+		try {
+			if( out != null ) {
+				out.close();
+				out = null;
+			}
+		} catch( IOException e ) {
+			log.warn("Error closing " + temp, e);
+		}
+	}
+
+
+	/* abort - close and delete the temporary file, leaving any existing
+	 * target file alone
+	 */
+
+	public void abort() {
+		try {
+			if( out != null ) {
+				out.close();
+				out = null;
+			}
+		} catch( IOException e ) {
+			log.warn("Error closing " + temp, e);
+		}
+		if( temp.exists() && !temp.delete() ) {
+			log.warn("Couldn't delete " + temp);
+		}
+	}
+
+
+	private static String hex(byte[] b) {
+		StringBuilder s = new StringBuilder(b.length * 2);
+		for( int i = 0; i < b.length; i++ ) {
+			s.append(Character.forDigit((b[i] >> 4) & 0xF, 16));
+			s.append(Character.forDigit(b[i] & 0xF, 16));
+		}
+		return s.toString();
+	}
+
+
+	/* needsQuotes - CSVPrinter's rules: the first value in a row is
+	 * quoted unless it starts with a letter or digit (so a leading # can't
+	 * be read as a comment), and any value is quoted if it starts with a
+	 * character up to '#', contains a comma, a quote or a line break, or
+	 * ends with whitespace.
+	 */
+
+	private static boolean needsQuotes(String value, boolean at_start) {
+		int len = value.length();
+		char c = value.charAt(0);
+		if( at_start && !((c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z')) ) {
+			return true;
+		}
+		if( c <= '#' || value.charAt(len - 1) <= ' ' ) {
+			return true;
+		}
+		for( int i = 0; i < len; i++ ) {
+			c = value.charAt(i);
+			if( c == ',' || c == '"' || c == '\n' || c == '\r' ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	/* putChar - UTF-8 encodes the character at i, returning the index of
+	 * the last char used (i + 1 for a surrogate pair)
+	 */
+
+	private int putChar(String s, int i) throws IOException {
+		char c = s.charAt(i);
+		if( c < 0x80 ) {
+			put((byte)c);
+		} else if( c < 0x800 ) {
+			put((byte)(0xC0 | (c >> 6)));
+			put((byte)(0x80 | (c & 0x3F)));
+		} else if( Character.isHighSurrogate(c) && i + 1 < s.length()
+				&& Character.isLowSurrogate(s.charAt(i + 1)) ) {
+			int cp = Character.toCodePoint(c, s.charAt(i + 1));
+			put((byte)(0xF0 | (cp >> 18)));
+			put((byte)(0x80 | ((cp >> 12) & 0x3F)));
+			put((byte)(0x80 | ((cp >> 6) & 0x3F)));
+			put((byte)(0x80 | (cp & 0x3F)));
+			return i + 1;
+		} else if( c >= 0xD800 && c <= 0xDFFF ) {
+			// unpaired surrogate
+			put((byte)'?');
+		} else {
+			put((byte)(0xE0 | (c >> 12)));
+			put((byte)(0x80 | ((c >> 6) & 0x3F)));
+			put((byte)(0x80 | (c & 0x3F)));
+		}
+		return i;
+	}
+
+
+	private void put(byte b) throws IOException {
+		if( pos == buf.length ) {
+			flush();
+		}
+		buf[pos++] = b;
+	}
+
+
+	private void flush() throws IOException {
+		if( pos > 0 ) {
+			out.write(buf, 0, pos);
+			pos = 0;
+		}
+	}
+}
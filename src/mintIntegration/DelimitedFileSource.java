@@ -0,0 +1,274 @@
+package mintIntegration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/* DelimitedFileSource - reads rows from a UTF-8 CSV or TSV export, for
+ * feeds which come as flat files rather than from the database:
+ *
+ * <query name="Grants">
+ *   <source file="grants.tsv" delimiter="tab" header="1"/>
+ *
+ * The columns must be in the same order as the infields, as they would
+ * be in the SQL.  Values can be quoted, with "" for a quote inside a
+ * quoted value.  An empty unquoted value is a null, as it would be from
+ * the database, and an empty quoted one ("") is an empty string.
+ *
+ * The file is memory-mapped a window at a time.  next() only finds
+ * where each field starts and ends, and get() decodes a field when it's
+ * asked for, so there's no array or String made for the row as a whole.
+ */
+
+public class DelimitedFileSource implements RowSource {
+
+	private static long WINDOW = 1L << 30;
+	private static Charset UTF8 = Charset.forName("UTF-8");
+	private static byte QUOTE = '"';
+
+	private File file;
+	private byte delimiter;
+	private boolean header;
+
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private long size;
+	private MappedByteBuffer buf;
+	private long base;
+	private int limit;
+	private int pos;
+
+	private int n_fields;
+	private int[] starts;
+	private int[] ends;
+	private boolean[] quoted;
+	private byte[] scratch;
+
+
+	/* DelimitedFileSource - reads file with fields separated by
+	 * delimiter, usually ',' or '\t', skipping the first row as column
+	 * names if header is set
+	 */
+
+	DelimitedFileSource(File file, char delimiter, boolean header) {
+		this.file = file;
+		this.delimiter = (byte)delimiter;
+		this.header = header;
+		starts = new int[16];
+		ends = new int[16];
+		quoted = new boolean[16];
+		scratch = new byte[256];
+	}
+
+
+	/* delimiter - the config value: "tab", "comma" or the character */
+
+	public static char delimiter(String value) {
+		if( value == null || value.equals("comma") ) {
+			return ',';
+		}
+		if( value.equals("tab") || value.equals("\\t") ) {
+			return '\t';
+		}
+		return value.charAt(0);
+	}
+
+
+	/* open - the number of columns is taken from the header, or from
+	 * the first row if there isn't one.  The query is ignored.
+	 */
+
+	public int open(String query) throws IOException {
+		raf = new RandomAccessFile(file, "r");
+		channel = raf.getChannel();
+		size = channel.size();
+		map(0);
+		// skip a UTF-8 byte order mark
+		if( limit >= 3 && buf.get(0) == (byte)0xEF && buf.get(1) == (byte)0xBB && buf.get(2) == (byte)0xBF ) {
+			pos = 3;
+		}
+		long first = base + pos;
+		if( !nextRow() ) {
+			return 0;
+		}
+		int cols = n_fields;
+		if( !header ) {
+			map(first);
+		}
+		return cols;
+	}
+
+
+	public boolean next() throws IOException {
+		return nextRow();
+	}
+
+
+	public String get(int col) {
+		if( col >= n_fields ) {
+			return null;
+		}
+		int start = starts[col];
+		int len = ends[col] - start;
+		if( !quoted[col] ) {
+			if( len == 0 ) {
+				return null;
+			}
+			if( len > scratch.length ) {
+				scratch = new byte[Math.max(len, scratch.length * 2)];
+			}
+			buf.position(start);
+			buf.get(scratch, 0, len);
+			return new String(scratch, 0, len, UTF8);
+		}
+		// quoted: drop the outer quotes and undouble the inner ones
+		if( len > scratch.length ) {
+			scratch = new byte[Math.max(len, scratch.length * 2)];
+		}
+		int n = 0;
+		for( int i = start + 1; i < ends[col] - 1; i++ ) {
+			byte b = buf.get(i);
+			scratch[n++] = b;
+			if( b == QUOTE ) {
+				i++;
+			}
+		}
+		return new String(scratch, 0, n, UTF8);
+	}
+
+
+	public void close() {
+		try {
+			if( raf != null ) {
+				raf.close();
+			}
+		} catch( IOException e ) {
+			// nothing to lose, the file was only read
+		}
+		raf = null;
+		channel = null;
+		buf = null;
+	}
+
+
+	private void map(long offset) throws IOException {
+		base = offset;
+		limit = (int)Math.min(WINDOW, size - offset);
+		buf = channel.map(FileChannel.MapMode.READ_ONLY, offset, limit);
+		pos = 0;
+	}
+
+
+	/* nextRow - skips blank lines.  If a row runs off the end of the
+	 * window, the window is moved to start at that row and it's scanned
+	 * again.
+	 */
+
+	private boolean nextRow() throws IOException {
+		while( true ) {
+			if( base + pos >= size ) {
+				n_fields = 0;
+				return false;
+			}
+			int start = pos;
+			if( scanRow() ) {
+				if( n_fields == 1 && !quoted[0] && ends[0] == starts[0] ) {
+					continue;
+				}
+				return true;
+			}
+			if( start == 0 ) {
+				throw new IOException(file + ": row at byte " + base + " is longer than " + WINDOW + " bytes");
+			}
+			map(base + start);
+		}
+	}
+
+
+	/* scanRow - records where each field starts and ends, and moves pos
+	 * past the end of the line.  Returns false if it reached the end of
+	 * the window, but not the end of the file, before the end of the row.
+	 */
+
+	private boolean scanRow() {
+		boolean last = base + limit >= size;
+		int p = pos;
+		n_fields = 0;
+		while( true ) {
+			if( n_fields == starts.length ) {
+				grow();
+			}
+			int start = p;
+			boolean q = false;
+			if( p < limit && buf.get(p) == QUOTE ) {
+				q = true;
+				p++;
+				while( true ) {
+					if( p >= limit ) {
+						if( !last ) {
+							return false;
+						}
+						break;
+					}
+					if( buf.get(p) == QUOTE ) {
+						if( p + 1 < limit && buf.get(p + 1) == QUOTE ) {
+							p += 2;
+							continue;
+						}
+						if( p + 1 >= limit && !last ) {
+							return false;
+						}
+						p++;
+						break;
+					}
+					p++;
+				}
+			}
+			// the rest of the field, up to a delimiter or end of line
+			while( p < limit ) {
+				byte b = buf.get(p);
+				if( b == delimiter || b == '\n' ) {
+					break;
+				}
+				p++;
+			}
+			if( p >= limit && !last ) {
+				return false;
+			}
+			int end = p;
+			if( end > start && buf.get(end - 1) == '\r' && (p >= limit || buf.get(p) == '\n') ) {
+				end--;
+			}
+			starts[n_fields] = start;
+			ends[n_fields] = end;
+			quoted[n_fields] = q && end - start >= 2 && buf.get(end - 1) == QUOTE;
+			n_fields++;
+			if( p >= limit ) {
+				pos = p;
+				return true;
+			}
+			if( buf.get(p) == '\n' ) {
+				pos = p + 1;
+				return true;
+			}
+			p++;
+		}
+	}
+
+
+	private void grow() {
+		int n = starts.length * 2;
+		int[] s = new int[n];
+		int[] e = new int[n];
+		boolean[] q = new boolean[n];
+		System.arraycopy(starts, 0, s, 0, starts.length);
+		System.arraycopy(ends, 0, e, 0, ends.length);
+		System.arraycopy(quoted, 0, q, 0, quoted.length);
+		starts = s;
+		ends = e;
+		quoted = q;
+	}
+}
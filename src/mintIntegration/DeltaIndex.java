@@ -0,0 +1,216 @@
+package mintIntegration;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/* DeltaIndex - unique_ID to content hash for every record in a file,
+ * kept from one run to the next so that the records which have been
+ * added, changed or deleted since can be found.
+ *
+ * The index is held as a pair of arrays sorted by key and looked up
+ * by binary search.  On disk it's a version number, a count and then
+ * a key (modified UTF-8) and a 64-bit hash per record.
+ */
+
+public class DeltaIndex {
+
+	private static int VERSION = 1;
+
+	private String[] keys;
+	private long[] hashes;
+	private int size;
+	private BitSet seen;
+
+
+	DeltaIndex() {
+		keys = new String[1024];
+		hashes = new long[1024];
+		size = 0;
+		seen = new BitSet();
+	}
+
+
+	/* load - returns an empty index if the file doesn't exist yet */
+
+	public static DeltaIndex load(File file) throws IOException {
+		DeltaIndex index = new DeltaIndex();
+		if( !file.exists() ) {
+			return index;
+		}
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			int version = in.readInt();
+			if( version != VERSION ) {
+				throw new IOException(file + ": unknown index version " + version);
+			}
+			int n = in.readInt();
+			index.keys = new String[Math.max(n, 16)];
+			index.hashes = new long[Math.max(n, 16)];
+			for( int i = 0; i < n; i++ ) {
+				index.keys[i] = in.readUTF();
+				index.hashes[i] = in.readLong();
+			}
+			index.size = n;
+		} finally {
+			in.close();
+		}
+		index.sort();
+		return index;
+	}
+
+
+	public int size() {
+		return size;
+	}
+
+
+	public void add(String key, long hash) {
+		if( size == keys.length ) {
+			keys = Arrays.copyOf(keys, size * 2);
+			hashes = Arrays.copyOf(hashes, size * 2);
+		}
+		keys[size] = key;
+		hashes[size] = hash;
+		size++;
+	}
+
+
+	/* find - the position of key, or -1.  Only valid once sorted. */
+
+	public int find(String key) {
+		int lo = 0;
+		int hi = size - 1;
+		while( lo <= hi ) {
+			int mid = (lo + hi) >>> 1;
+			int c = keys[mid].compareTo(key);
+			if( c < 0 ) {
+				lo = mid + 1;
+			} else if( c > 0 ) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+
+	public String key(int i) {
+		return keys[i];
+	}
+
+
+	public long hash(int i) {
+		return hashes[i];
+	}
+
+
+	public void markSeen(int i) {
+		seen.set(i);
+	}
+
+
+	public boolean isSeen(int i) {
+		return seen.get(i);
+	}
+
+
+	/* save - writes to a temporary file and renames it into place */
+
+	public void save(File file) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+		try {
+			out.writeInt(VERSION);
+			out.writeInt(size);
+			for( int i = 0; i < size; i++ ) {
+				out.writeUTF(keys[i]);
+				out.writeLong(hashes[i]);
+			}
+		} finally {
+			out.close();
+		}
+		FileUtil.replace(temp, file);
+	}
+
+
+	/* hash - 64-bit FNV-1a, over the values with a separator between
+	 * each and a marker for nulls
+	 */
+
+	public static long hash(long h, String value) {
+		if( value == null ) {
+			h ^= 0xFF;
+			h *= 0x100000001b3L;
+		} else {
+			int len = value.length();
+			for( int i = 0; i < len; i++ ) {
+				h ^= value.charAt(i);
+				h *= 0x100000001b3L;
+			}
+		}
+		h ^= 0xFE;
+		h *= 0x100000001b3L;
+		return h;
+	}
+
+
+	public static long start() {
+		return 0xcbf29ce484222325L;
+	}
+
+
+	private void sort() {
+		quicksort(0, size - 1);
+	}
+
+
+	private void quicksort(int lo, int hi) {
+		while( lo < hi ) {
+			String pivot = keys[(lo + hi) >>> 1];
+			int i = lo;
+			int j = hi;
+			while( i <= j ) {
+				while( keys[i].compareTo(pivot) < 0 ) {
+					i++;
+				}
+				while( keys[j].compareTo(pivot) > 0 ) {
+					j--;
+				}
+				if( i <= j ) {
+					swap(i, j);
+					i++;
+					j--;
+				}
+			}
+			// recurse into the smaller half to bound the stack
+			if( j - lo < hi - i ) {
+				quicksort(lo, j);
+				lo = i;
+			} else {
+				quicksort(i, hi);
+				hi = j;
+			}
+		}
+	}
+
+
+	private void swap(int i, int j) {
+		String k = keys[i];
+		keys[i] = keys[j];
+		keys[j] = k;
+		long h = hashes[i];
+		hashes[i] = hashes[j];
+		hashes[j] = h;
+	}
+}
@@ -0,0 +1,99 @@
+package mintIntegration;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* EncryptIdsStage - encrypt_ids from pp1: re-keys each person by their
+ * staff ID encrypted with Skip32, which is also put in the ID field,
+ * and blanks the <staffIDs><originalID> field.  The IDs are encrypted
+ * as one batch, across all of the processors if there are enough.
+ *
+ * With index="FILE" on the stage, an IdIndex of the staff IDs and the
+ * encrypted IDs is written to the working directory for IdLookup.
+ */
+
+public class EncryptIdsStage implements Stage {
+
+    private static Logger log = LoggerFactory.getLogger(EncryptIdsStage.class);
+
+	private Skip32 cipher;
+	private String original_id;
+	private File index;
+
+
+	/* index is null if there isn't to be one */
+
+	EncryptIdsStage(Configuration conf, File index) {
+		this.index = index;
+		cipher = Skip32.fromHex(conf.getString("staffIDs.cryptKey"));
+		original_id = conf.getString("staffIDs.originalID");
+	}
+
+
+	public RecordStore apply(RecordStore people, PostProcess pp) throws IOException {
+		RecordStore out = people.emptyCopy();
+		int id_col = people.column("ID");
+		int original_col = people.column(original_id);
+		int width = people.width();
+		int n = people.size();
+
+		// parse them all first, and encrypt them as a batch
+		int[] ids = new int[n];
+		boolean[] valid = new boolean[n];
+		for( int r = 0; r < n; r++ ) {
+			try {
+				ids[r] = parseId(people.key(r));
+				valid[r] = true;
+			} catch( NumberFormatException e ) {
+				log.warn("Staff ID '" + people.key(r) + "' isn't a number - skipping");
+			}
+		}
+		int[] encrypted = new int[n];
+		cipher.encrypt(ids, encrypted, Runtime.getRuntime().availableProcessors());
+		int[] index_staff = new int[n];
+		int[] index_encrypted = new int[n];
+		int n_index = 0;
+
+		for( int r = 0; r < n; r++ ) {
+			if( !valid[r] ) {
+				continue;
+			}
+			String new_id = Skip32.toHex(encrypted[r]);
+			if( out.containsKey(new_id) ) {
+				log.warn("Staff ID '" + people.key(r) + "' is a duplicate - skipping");
+				continue;
+			}
+			int row = out.add(new_id);
+			for( int c = 0; c < width; c++ ) {
+				out.set(row, c, people.get(r, c));
+			}
+			if( original_col >= 0 && original_col != id_col ) {
+				out.set(row, original_col, null);
+			}
+			if( id_col >= 0 ) {
+				out.set(row, id_col, new_id);
+			}
+			index_staff[n_index] = ids[r];
+			index_encrypted[n_index] = encrypted[r];
+			n_index++;
+		}
+		if( index != null ) {
+			IdIndex.write(index, index_staff, index_encrypted, n_index);
+			log.info("Wrote " + n_index + " IDs to " + index);
+		}
+		return out;
+	}
+
+
+	/* parseId - a staff ID as pack("N") takes it: leading zeros are
+	 * ignored, and anything wider than 32 bits keeps its low 32 bits
+	 */
+
+	static int parseId(String key) {
+		return (int)Long.parseLong(key.trim());
+	}
+}
@@ -1,17 +1,17 @@
 package mintIntegration;
 
-import java.io.FileWriter;
+import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
-import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
-import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.configuration.Configuration;
-import org.apache.commons.csv.CSVPrinter;
-import org.apache.commons.csv.CSVStrategy;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,23 +20,57 @@ public class Feed {
 
     private static Logger log = LoggerFactory.getLogger(Feed.class);
 
+    /* placeholder in params for the watermark */
+    private static Object WATERMARK = new Object();
+
 	private String dir;
 	private String name;
 	private String sql;
-	private String file;
 	private Configuration conf;
 	private int primary_key_column;
 	private int fors_column;
 	private int max_fors;
 	private int n_infields;
-	private int n_outfields;
 	private String fors_prefix;
 	private boolean has_fors;
 	private boolean trace;
-	private HashMap<String, HashMap<String, String>> records;
+	private boolean streaming;
+	private Partitioning partitions;
+	private int fetch_size;
+	private int timeout;
+	private boolean server_cursor;
+	private ArrayList<Object> params;
+	private boolean incremental;
+	private int watermark_column;
+	private File snapshot_file;
+	private int resync_days;
+	private Timestamp watermark;
+	private Timestamp initial_watermark;
+	private Timestamp new_watermark;
+	private boolean full_sync;
+	private long spill_budget;
+	private int pipeline;
+	private File spill_dir;
+	private RowCache cache;
+	private String database_url;
+	private File source_file;
+	private char source_delimiter;
+	private boolean source_header;
+	private RecordStore records;
+	private RecordStore layout;
+	private int[] for_columns;
+	private ArrayList<Projection> projections;
+	private int written;
+	private boolean complete;
+	private RunJournal journal;
+	private int checkpoint_every;
+	private boolean checkpointing;
+	private String resume_key;
+	private FieldNormaliser[] normalisers;
+	private FieldNormaliser default_normaliser;
 	
 	private ArrayList<String> infields;
-	private ArrayList<String> outfields;
+
 
 	
 	/* FIXME: this could do with some exception handling against 
@@ -48,14 +82,101 @@ public class Feed {
 		conf = qconf;
 		name = conf.getString("[@name]");
 		sql = conf.getString("sql");
-		file = conf.getString("outfields(0)[@file]");
 		String trace_v = conf.getString("[@trace]");
 		if( trace_v != null ) {
 			trace = true;
 		} else {
 			trace = false;
 		}
+		// stream="1" writes each record as soon as the next key turns
+		// up, rather than holding them all in memory. The SQL must be
+		// ORDER BY the unique_ID column for this to work.
+		if( conf.getString("[@stream]") != null ) {
+			streaming = true;
+		} else {
+			streaming = false;
+		}
+		// <source file="..." delimiter="tab" header="1"/> reads the rows
+		// from a flat-file export instead of running the SQL
+		if( conf.getString("source[@file]") != null ) {
+			source_file = new File(dir, conf.getString("source[@file]"));
+			source_delimiter = DelimitedFileSource.delimiter(conf.getString("source[@delimiter]"));
+			source_header = conf.getString("source[@header]") != null;
+		} else {
+			source_file = null;
+		}
+		partitions = Partitioning.fromConfig(conf);
+		if( partitions != null && source_file != null ) {
+			log.warn("Query " + name + " reads from a file, so it can't be partitioned");
+			partitions = null;
+		}
+		if( partitions == null && Partitioning.hasToken(sql) ) {
+			sql = StringUtils.replace(sql, Partitioning.TOKEN, "1 = 1");
+		} else if( partitions != null && !Partitioning.hasToken(sql) ) {
+			log.error("Query " + name + " is partitioned but its SQL has no " + Partitioning.TOKEN);
+			partitions = null;
+		}
+		fetch_size = conf.getInt("[@fetch_size]", 0);
+		timeout = conf.getInt("[@timeout]", 0);
+		// server_cursor="1" runs the query on a connection of its own
+		// with jTDS's useCursors=true, so that the rows come from a
+		// server-side cursor fetch_size at a time rather than all being
+		// read into memory by the driver first.  Any other driver just
+		// gets the fetch_size.
+		if( conf.getString("[@server_cursor]") != null ) {
+			server_cursor = true;
+		} else {
+			server_cursor = false;
+		}
+		// spill_mb="N" groups rows whose SQL can't be ordered by key: 
+		// once N MB of rows are buffered they're sorted and spilled to 
+		// temp files in spill_dir, and the runs are merged by key at the
+		// end.  The merged records are streamed to the CSV.
+		spill_budget = conf.getLong("[@spill_mb]", 0) * 1024 * 1024;
+		spill_dir = new File(conf.getString("[@spill_dir]", dir));
+		if( spill_budget > 0 ) {
+			streaming = true;
+		}
+		// pipeline="N" reads the rows on a separate thread, up to N 
+		// rows ahead of the thread which folds and writes them
+		pipeline = conf.getInt("[@pipeline]", 0);
+		// cache_ttl="SECONDS" saves the raw rows to cache_dir and replays
+		// them instead of running the query until they're that old
+		long cache_ttl = conf.getLong("[@cache_ttl]", 0);
+		if( cache_ttl > 0 ) {
+			cache = new RowCache(new File(conf.getString("[@cache_dir]", dir + "/cache")), cache_ttl);
+		} else {
+			cache = null;
+		}
+		// <incremental column="..." snapshot="..." resync_days="N"/> only
+		// fetches the rows modified since the last run, by binding the
+		// stored watermark to a <param type="watermark">, and merges them
+		// into the snapshot of all the records from the previous runs.
+		// A changed record replaces the whole of the old one, so the 
+		// column must be the record's last-modified time, the MAX() over
+		// all of its rows, and the SQL must fetch every row of a record 
+		// which has changed.  Records deleted at source stay in the 
+		// snapshot until the next full sync.
+		if( conf.getString("incremental[@column]") != null ) {
+			incremental = true;
+			snapshot_file = new File(dir, conf.getString("incremental[@snapshot]", name + ".snapshot"));
+			resync_days = conf.getInt("incremental[@resync_days]", 0);
+			if( streaming ) {
+				log.warn("Query " + name + " is incremental, so it can't be streamed");
+				streaming = false;
+			}
+		} else {
+			incremental = false;
+		}
+		loadParams();
 		loadFields();
+		if( incremental ) {
+			watermark_column = infields.indexOf(conf.getString("incremental[@column]"));
+			if( watermark_column < 0 ) {
+				log.error("Query " + name + ": incremental column isn't one of the infields");
+				incremental = false;
+			}
+		}
 	}
 	
 	
@@ -64,7 +185,6 @@ public class Feed {
     	n_infields = conf.getList("infields.field[@name]").size();
     	
     	infields = (ArrayList<String>)new ArrayList();
-    	outfields = (ArrayList<String>)new ArrayList();
     	
     	for( int i = 0; i < n_infields; i++ ) {
     		String prefix = "infields.field(" + i + ")";
@@ -80,171 +200,1014 @@ public class Feed {
     		}
     	}
     	
-    	// Note: some queries have multiple lists of outfields.
-    	// This assumes that the first one is the 'raw' set for
-    	// the initial query.
+    	// clean="..." sets which FieldNormaliser steps apply to a field. 
+    	// The unique_ID is always trimmed.
+    	
+    	default_normaliser = new FieldNormaliser(FieldNormaliser.DEFAULT_STEPS);
+    	normalisers = new FieldNormaliser[n_infields];
+    	for( int i = 0; i < n_infields; i++ ) {
+    		String steps = conf.getString("infields.field(" + i + ")[@clean]");
+    		if( steps == null ) {
+    			normalisers[i] = default_normaliser;
+    		} else {
+    			if( i == primary_key_column ) {
+    				steps = steps + ",trim,null";
+    			}
+    			normalisers[i] = new FieldNormaliser(steps);
+    		}
+    	}
     	
-    	n_outfields = conf.getList("outfields(0).field[@name]").size();
+    	// Note: some queries have multiple lists of outfields.
+    	// The first one is the 'raw' set for the initial query; each
+    	// of them is written to its own file from the same records.
     	
-    	for( int i = 0; i < n_outfields; i++ ) {
-    		String prefix = "outfields.field(" + i + ")";
-    		outfields.add(i, conf.getString(prefix + "[@name]"));
+    	projections = new ArrayList<Projection>();
+    	int n = 0;
+    	while( conf.getString("outfields(" + n + ")[@file]") != null ) {
+    		String prefix = "outfields(" + n + ")";
+    		ArrayList<String> fields = new ArrayList<String>();
+    		int nf = conf.getList(prefix + ".field[@name]").size();
+    		for( int i = 0; i < nf; i++ ) {
+    			fields.add(conf.getString(prefix + ".field(" + i + ")[@name]"));
+    		}
+    		Projection p = new Projection(conf.getString(prefix + "[@name]"), 
+    				conf.getString(prefix + "[@file]"), fields);
+    		if( conf.getString(prefix + "[@delta]") != null ) {
+    			p.setDelta(infields.get(primary_key_column));
+    		}
+    		// parts="N" splits the file N ways by unique_ID and 
+    		// compress="gzip" gzips it, with a manifest of the files
+    		int parts = conf.getInt(prefix + "[@parts]", 1);
+    		String compress = conf.getString(prefix + "[@compress]");
+    		boolean gzip = false;
+    		if( compress != null ) {
+    			if( compress.equals("gzip") ) {
+    				gzip = true;
+    			} else if( compress.equals("zstd") ) {
+    				log.warn("Query " + name + ": zstd isn't available, using gzip");
+    				gzip = true;
+    			} else {
+    				log.error("Query " + name + ": unknown compress=\"" + compress + "\", not compressing");
+    			}
+    		}
+    		if( parts > 1 || gzip ) {
+    			p.setParts(parts, gzip);
+    		}
+    		projections.add(p);
+    		n++;
+    	}
+    	if( projections.isEmpty() ) {
+    		log.error("Query " + name + " has no outfields with a file");
     	}
     	
-
+    	buildLayout();
+	}
+	
+	
+	/* buildLayout - works out the columns for the RecordStore: the 
+	 * infields, the numbered FOR fields and then the fields from any of
+	 * the outfields lists which aren't one of those.  Fields marked with dictionary="1" (and all
+	 * of the FOR codes) are dictionary-encoded.
+	 */
+	
+	private void buildLayout() {
+		ArrayList<String> fields = new ArrayList<String>(infields);
+		ArrayList<Boolean> dictionary = new ArrayList<Boolean>();
+		
+		for( int i = 0; i < n_infields; i++ ) {
+			String prefix = "infields.field(" + i + ")";
+			dictionary.add(Boolean.valueOf(i == fors_column && has_fors 
+					|| conf.getString(prefix + "[@dictionary]") != null));
+		}
+		if( has_fors ) {
+			for( int j = 0; j < max_fors; j++ ) {
+				String field = fors_prefix + "_" + (j + 1);
+				if( !fields.contains(field) ) {
+					fields.add(field);
+					dictionary.add(Boolean.TRUE);
+				}
+			}
+		}
+		for( int n = 0; n < projections.size(); n++ ) {
+			List<String> pfields = projections.get(n).getFields();
+			for( int i = 0; i < pfields.size(); i++ ) {
+				String field = pfields.get(i);
+				if( !fields.contains(field) ) {
+					fields.add(field);
+					dictionary.add(Boolean.valueOf(conf.getString("outfields(" + n + ").field(" + i + ")[@dictionary]") != null));
+				}
+			}
+		}
+		
+		boolean[] dict = new boolean[fields.size()];
+		for( int i = 0; i < dict.length; i++ ) {
+			dict[i] = dictionary.get(i).booleanValue();
+		}
+		layout = new RecordStore(fields, dict);
+		
+		if( has_fors ) {
+			for_columns = new int[max_fors];
+			for( int j = 0; j < max_fors; j++ ) {
+				for_columns[j] = layout.column(fors_prefix + "_" + (j + 1));
+			}
+		}
+		for( Projection p: projections ) {
+			p.bind(layout);
+		}
 	}
 
 
 	
-    public void runQuery(Connection con) {
-    	
-    	Statement stmt = null;
-    	ResultSet rset = null;
+    public String getName() {
+    	return name;
+    }
+    
+    
+    public boolean isStreaming() {
+    	return streaming;
+    }
+    
+    
+    /* isComplete - whether the last run of the query succeeded */
+    
+    public boolean isComplete() {
+    	return complete;
+    }
+    
+    
+    /* setJournal - a streamed feed checkpoints every so many records,
+     * and carries on from the last checkpoint if there is one
+     */
+    
+    public void setJournal(RunJournal journal, int every) {
+    	this.journal = journal;
+    	this.checkpoint_every = every;
+    }
+    
+    
+    /* getRecords - the records from the last run, unless streaming */
+    
+    public RecordStore getRecords() {
+    	return records;
+    }
+    
+    
+    /* deferProjection - marks an outfields list as being written by a 
+     * PostProcess stage.  Returns it, or null if there's no such list.
+     */
+    
+    public Projection deferProjection(String outfields) {
+    	for( Projection p: projections ) {
+    		if( outfields != null && outfields.equals(p.getName()) ) {
+    			p.setDeferred(true);
+    			return p;
+    		}
+    	}
+    	return null;
+    }
+    
+    
+    public boolean isIncremental() {
+    	return incremental;
+    }
+    
+    
+    public int getResyncDays() {
+    	return resync_days;
+    }
+    
+    
+    /* setWatermark - the watermark from the last successful run.  If full
+     * is set, or there's no usable snapshot, all of the rows are fetched
+     * and replace the snapshot.
+     */
+    
+    public void setWatermark(Timestamp watermark, boolean full) {
+    	this.watermark = watermark;
+    	this.full_sync = full || watermark == null || !Snapshot.matches(snapshot_file, layout);
+    	if( this.full_sync ) {
+    		log.info("Query " + name + ": full sync");
+    	} else {
+    		log.info("Query " + name + ": rows modified since " + watermark);
+    	}
+    }
+    
+    
+    public boolean isFullSync() {
+    	return full_sync;
+    }
+    
+    
+    /* getNewWatermark - the latest modified time seen, or the old 
+     * watermark if no rows came back
+     */
+    
+    public Timestamp getNewWatermark() {
+    	if( new_watermark == null ) {
+    		return watermark;
+    	}
+    	return new_watermark;
+    }
+    
+    
+    /* mergeSnapshot - merges the changed records into the last snapshot,
+     * after which records holds the full set.
+     */
+    
+    private boolean mergeSnapshot() {
+    	if( full_sync ) {
+    		return true;
+    	}
+    	try {
+    		RecordStore snapshot = Snapshot.load(snapshot_file, layout);
+    		if( snapshot == null ) {
+    			log.error("Query " + name + ": snapshot fields have changed");
+    			return false;
+    		}
+    		log.debug("Merging " + records.size() + " changed records into " + snapshot.size());
+    		Snapshot.merge(snapshot, records);
+    		records = snapshot;
+    	} catch( IOException e ) {
+    		log.error("Query " + name + ": couldn't read snapshot " + snapshot_file, e);
+    		return false;
+    	}
+    	return true;
+    }
+    
+    
+    /* saveSnapshot - call after the CSVs have been written */
+    
+    public boolean saveSnapshot() {
+    	try {
+    		Snapshot.save(records, snapshot_file);
+    	} catch( IOException e ) {
+    		log.error("Query " + name + ": couldn't save snapshot " + snapshot_file, e);
+    		return false;
+    	}
+    	return true;
+    }
+    
+    
+    /* runQuery - returns false if the query failed */
+    
+    public boolean runQuery(Connection con) {
     	
-    	records = (HashMap<String, HashMap<String, String>>)new HashMap();
+    	records = layout.emptyCopy();
 
     	log.debug("Running query: " + name);
 
+    	if( streaming && !openCSV(true) ) {
+    		return false;
+    	}
+    	
+    	// a partitioned query run on a single connection just does its
+    	// partitions one after the other
+    	boolean ok = true;
+    	for( int p = 0; p < getPartitionCount() && ok; p++ ) {
+    		ok = readQuery(openSource(con), partitionSql(p), records);
+    	}
+    	
+    	if( streaming ) {
+    		ok = closeCSV(ok) && ok;
+    		log.debug("Streamed " + written + " records");
+    	} else {
+    		log.debug("Got " + records.size() + " records");
+    		if( ok && incremental ) {
+    			ok = mergeSnapshot();
+    		}
+    	}
+    	complete = ok;
+    	return ok;
+    }
+    
+    
+    public int getPartitionCount() {
+    	if( partitions == null ) {
+    		return 1;
+    	}
+    	return partitions.count();
+    }
+    
+    
+    public boolean usesServerCursor() {
+    	return server_cursor;
+    }
+    
+    
+    /* runPartitioned - run each of the query's partitions concurrently,
+     * each on a connection from the pool, and merge the results.  Since
+     * all of the rows for a key are in the same partition the partitions'
+     * records can be merged (or streamed) without any further folding.
+     */
+    
+    public boolean runPartitioned(ConnectionPool pool) {
+    	
+    	if( partitions == null || partitions.count() == 1 ) {
+    		Connection c = null;
+    		try {
+    			c = pool.take();
+    		} catch( InterruptedException e ) {
+    			return false;
+    		}
+    		try {
+    			return runQuery(c);
+    		} finally {
+    			pool.release(c);
+    		}
+    	}
+    	
+    	int n = partitions.count();
+    	
+    	records = layout.emptyCopy();
+    	
+    	log.debug("Running query: " + name + " in " + n + " partitions");
+    	
+    	// the partitions' records are written in whatever order they come,
+    	// so there's no key to resume from
+    	if( streaming && !openCSV(false) ) {
+    		return false;
+    	}
+    	
+    	ExecutorService executor = Executors.newFixedThreadPool(Math.min(n, pool.size()));
+    	ArrayList<Future<RecordStore>> results = new ArrayList<Future<RecordStore>>();
+    	
+    	for( int p = 0; p < n; p++ ) {
+    		results.add(executor.submit(new PartitionTask(p, pool)));
+    	}
+    	
+    	boolean ok = true;
+    	for( int p = 0; p < n; p++ ) {
+    		try {
+    			RecordStore part = results.get(p).get();
+    			if( part == null ) {
+    				log.error("Partition " + p + " of " + name + " failed");
+    				ok = false;
+    			} else {
+    				log.debug("Partition " + p + " of " + name + ": " + part.size() + " records");
+    				records.putAll(part);
+    			}
+    		} catch( Exception e ) {
+    			log.error("Partition " + p + " of " + name + " failed", e);
+    			ok = false;
+    		}
+    	}
+    	executor.shutdown();
+    	
+    	if( streaming ) {
+    		ok = closeCSV(ok) && ok;
+    		log.debug("Streamed " + written + " records");
+    	} else {
+    		log.debug("Got " + records.size() + " records");
+    		if( ok && incremental ) {
+    			ok = mergeSnapshot();
+    		}
+    	}
+    	complete = ok;
+    	return ok;
+    }
+    
+    
+    /* PartitionTask - reads one partition into its own store, which is
+     * returned, or null if the query failed. 
+     */
+    
+    private class PartitionTask implements Callable<RecordStore> {
+    	
+    	private int partition;
+    	private ConnectionPool pool;
+    	
+    	PartitionTask(int partition, ConnectionPool pool) {
+    		this.partition = partition;
+    		this.pool = pool;
+    	}
+    	
+    	public RecordStore call() throws Exception {
+    		RecordStore part = layout.emptyCopy();
+    		Connection c = pool.take();
+    		boolean ok = false;
+    		try {
+    			ok = readQuery(openSource(c), partitions.apply(sql, partition), part);
+    		} finally {
+    			pool.release(c);
+    		}
+    		if( ok ) {
+    			return part;
+    		}
+    		return null;
+    	}
+    }
+    
+    
+    /* openSource - the query's flat file if it has one, otherwise its 
+     * SQL on con
+     */
+    
+    private RowSource openSource(Connection con) {
+    	if( source_file != null ) {
+    		return new DelimitedFileSource(source_file, source_delimiter, source_header);
+    	}
+    	return new JdbcRowSource(con, boundParams(), fetch_size, timeout);
+    }
+    
+    
+    private String partitionSql(int p) {
+    	if( partitions == null ) {
+    		return sql;
+    	}
+    	return partitions.apply(sql, p);
+    }
+    
+    
+    /* usesDatabase - false if the query reads from a file, or if all of
+     * its partitions can be replayed from the RowCache, in which case it
+     * doesn't need a connection
+     */
+    
+    public boolean usesDatabase() {
+    	if( source_file != null ) {
+    		return false;
+    	}
+    	if( cache == null ) {
+    		return true;
+    	}
+    	for( int p = 0; p < getPartitionCount(); p++ ) {
+    		if( !cache.isValid(cacheFile(partitionSql(p))) ) {
+    			return true;
+    		}
+    	}
+    	log.info("Query " + name + " will be replayed from the cache");
+    	return false;
+    }
+    
+    
+    /* setDatabaseUrl - the configured database URL, which the RowCache
+     * files are named by, so that they can be found without connecting
+     */
+    
+    public void setDatabaseUrl(String url) {
+    	database_url = url;
+    }
+    
+    
+    private File cacheFile(String query) {
+    	String target = database_url;
+    	if( source_file != null ) {
+    		target = source_file.getAbsolutePath();
+    	}
+    	return cache.fileFor(target, query, paramString());
+    }
+    
+    
+    /* boundParams - the params, with the watermark filled in */
+    
+    private List<Object> boundParams() {
+    	ArrayList<Object> bound = new ArrayList<Object>(params.size());
+    	for( Object p: params ) {
+    		if( p == WATERMARK ) {
+    			if( watermark == null || full_sync ) {
+    				p = initial_watermark;
+    			} else {
+    				p = watermark;
+    			}
+    		}
+    		bound.add(p);
+    	}
+    	return bound;
+    }
+    
+    
+    /* paramString - the values which will be bound, for the cache key */
+    
+    private String paramString() {
+    	StringBuilder b = new StringBuilder();
+    	for( Object p: boundParams() ) {
+    		b.append(p).append('\t');
+    	}
+    	return b.toString();
+    }
+    
+    
+    private void loadParams() {
+    	params = new ArrayList<Object>();
+    	int n = conf.getList("params.param").size();
+    	for( int i = 0; i < n; i++ ) {
+    		String prefix = "params.param(" + i + ")";
+    		String value = conf.getString(prefix);
+    		String type = conf.getString(prefix + "[@type]", "string");
+    		if( type.equals("int") ) {
+    			params.add(Integer.valueOf(value.trim()));
+    		} else if( type.equals("long") ) {
+    			params.add(Long.valueOf(value.trim()));
+    		} else if( type.equals("date") ) {
+    			params.add(java.sql.Date.valueOf(value.trim()));
+    		} else if( type.equals("watermark") ) {
+    			initial_watermark = Timestamp.valueOf(value.trim());
+    			params.add(WATERMARK);
+    		} else {
+    			params.add(value);
+    		}
+    	}
+    }
+    
+    
+    /* readQuery - runs the sql on con and folds the rows into the store
+     * (or, if streaming, writes them out as each record is completed).
+     */
+    
+    private boolean readQuery(RowSource source, String query, RecordStore into) {
+    	
+    	RowCache.Writer cached = null;
+    	
     	try {
-    		stmt = con.createStatement();
-	    
-    		rset = stmt.executeQuery(sql);
-
-    		ResultSetMetaData rsmd = rset.getMetaData();
-    		int cols = rsmd.getColumnCount();
-
-       		while( rset.next() ) {
-    			String[] line = new String[cols];
-    			for( int i = 0; i < cols; i++ ) {
-    				line[i] = StringUtils.replace(rset.getString(i + 1), "\n", "<br />");
-    				line[i] = StringUtils.replace(line[i], "\r", "");
-    				if( line[i] == null ) {
-    					line[i] = "";
-    				}
+    		File cache_file = null;
+    		if( cache != null ) {
+    			cache_file = cacheFile(query);
+    			if( cache.isValid(cache_file) ) {
+    				return replayCache(cache_file, into);
     			}
-    			String id = StringUtils.trim(line[primary_key_column]);
-    			if( trace ) {
-    				log.debug("ID = " + id);
-    				log.debug("Row: " + StringUtils.join(line, ','));
+    		}
+
+    		long start = System.currentTimeMillis();
+    		long first = -1;
+    		int rows = 0;
+    		
+    		int cols = source.open(query);
+
+    		Folder folder = new Folder(into);
+    		SpillSorter sorter = null;
+    		if( spill_budget > 0 ) {
+    			sorter = new SpillSorter(name, spill_dir, spill_budget);
+    		}
+    		if( cache_file != null ) {
+    			cached = cache.openWriter(cache_file, cols);
+    		}
+
+    		if( pipeline > 0 ) {
+    			// fetch on another thread while this one folds and writes
+    			RowPipeline reader = new RowPipeline(source, cols, pipeline);
+    			reader.start("Feed " + name + " reader");
+    			try {
+    				String[] line;
+    				while( (line = reader.take()) != null ) {
+    					if( first < 0 ) {
+    						first = System.currentTimeMillis() - start;
+    					}
+    					rows++;
+    					if( cached != null ) {
+    						cached.write(line);
+    					}
+    					processRow(line, folder, sorter);
+    				}
+    			} finally {
+    				reader.stop();
     			}
-    			if( records.containsKey(id) ) {
-    				HashMap<String, String> record = records.get(id);
-    				if( has_fors ) {
-    					setFOR(record, line[fors_column]);
-    				} else {
-    					log.debug("Warning: multiple records with ID='" + id + "'");
-    				} 
-    			} else {
-    				HashMap<String, String> record = (HashMap<String, String>)new HashMap();
-    				for( int i = 0; i < n_infields; i++ ) {
-    					// have to explicitly trim whitespace, because the CSV writer isn't
-    					// doing it for me
-    					record.put(infields.get(i), StringUtils.trim(line[i]));
+    		} else {
+    			String[] line = null;
+    			while( source.next() ) {
+    				if( first < 0 ) {
+    					first = System.currentTimeMillis() - start;
+    				}
+    				rows++;
+    				// records copy the values out of the row, so one array
+    				// does for every row unless the sorter is keeping them
+    				if( line == null || sorter != null ) {
+    					line = new String[cols];
+    				}
+    				for( int i = 0; i < cols; i++ ) {
+    					line[i] = source.get(i);
     				}
-        			if( trace ) {
-        				log.debug("Storing record with id = '" + id + "'");
-        				
-        			}
-    				records.put(id, record);
-    			}    			
+    				if( cached != null ) {
+    					cached.write(line);
+    				}
+    				processRow(line, folder, sorter);
+    			}
     		}
     		
-    		rset.close();
-    		stmt.close();
+    		source.close();
+    		if( cached != null ) {
+    			cached.commit();
+    			cached = null;
+    		}
     		
-    		log.debug("Got " + records.size() + " records");
+    		log.info("Query " + name + ": " + rows + " rows, first row after " 
+    				+ first + " ms, all rows after " + (System.currentTimeMillis() - start) + " ms");
+    		
+    		if( sorter != null ) {
+    			sorter.finish(folder);
+    		}
+    		folder.finish();
     		
     	} catch ( Exception e ) {
-    		e.printStackTrace();
+    		log.error("Query " + name + " failed", e);
+    		if( cached != null ) {
+    			cached.abort();
+    		}
+    		return false;
+    	} finally {
+    		source.close();
+    	}
+    	return true;
+    }
+    
+    
+    /* replayCache - reads the rows from a cache file instead of the 
+     * database, and folds them exactly as readQuery would
+     */
+    
+    private boolean replayCache(File cache_file, RecordStore into) throws Exception {
+    	long start = System.currentTimeMillis();
+    	int rows = 0;
+    	
+    	RowCache.Reader reader = cache.openReader(cache_file);
+    	Folder folder = new Folder(into);
+    	SpillSorter sorter = null;
+    	if( spill_budget > 0 ) {
+    		sorter = new SpillSorter(name, spill_dir, spill_budget);
+    	}
+    	String[] line;
+    	while( (line = reader.next()) != null ) {
+    		rows++;
+    		processRow(line, folder, sorter);
     	}
+    	
+    	log.info("Query " + name + ": " + rows + " rows replayed from " + cache_file.getName() 
+    			+ " in " + (System.currentTimeMillis() - start) + " ms");
+    	
+    	if( sorter != null ) {
+    		sorter.finish(folder);
+    	}
+    	folder.finish();
+    	return true;
     }
     
     
-    private void setFOR(HashMap<String, String> record, String FOR) {
+    /* processRow - tidies up a raw row and hands it on for folding */
+    
+    private void processRow(String[] line, Folder folder, SpillSorter sorter) throws IOException {
+		for( int i = 0; i < line.length; i++ ) {
+			if( i < n_infields ) {
+				line[i] = normalisers[i].normalise(line[i]);
+			} else {
+				line[i] = default_normaliser.normalise(line[i]);
+			}
+		}
+		String id = line[primary_key_column];
+		if( incremental ) {
+			updateWatermark(line[watermark_column]);
+		}
+		if( trace ) {
+			log.debug("ID = " + id);
+			log.debug("Row: " + StringUtils.join(line, ','));
+		}
+		if( sorter != null ) {
+			sorter.add(id, line);
+		} else {
+			folder.row(id, line);
+		}
+    }
+    
+    
+    private synchronized void updateWatermark(String value) {
+    	if( value == null || value.length() == 0 ) {
+    		return;
+    	}
+    	try {
+    		Timestamp t = Timestamp.valueOf(value);
+    		if( new_watermark == null || t.after(new_watermark) ) {
+    			new_watermark = t;
+    		}
+    	} catch( IllegalArgumentException e ) {
+    		log.warn("Query " + name + ": bad timestamp '" + value + "'");
+    	}
+    }
+    
+    
+    /* Folder - folds rows into records.  When streaming, the record being
+     * built is the only row in current, and as soon as the key changes
+     * it's complete, gets written and current is cleared.  Otherwise
+     * rows are folded into the store by key.
+     *
+     * Streaming only works if all of a key's rows come together.  If a
+     * key turns up again after its record was written, the rows aren't
+     * in key order, and the feed fails rather than writing the key as
+     * two records.
+     */
+    
+    private class Folder implements SpillSorter.RowHandler {
+    	
+    	private RecordStore into;
+    	private RecordStore current;
+    	private String current_id;
+    	private SeenKeys seen;
+    	
+    	Folder(RecordStore into) {
+    		this.into = into;
+    		if( streaming ) {
+    			current = layout.emptyCopy();
+    			seen = new SeenKeys();
+    		}
+    	}
+    	
+    	public void row(String id, String[] line) throws IOException {
+			if( streaming ) {
+				if( current_id != null && id.equals(current_id) ) {
+					addRow(current, 0, id, line);
+				} else {
+					finish();
+					if( !seen.add(id) ) {
+						throw new IOException("Query " + name + ": ID '" + id + "' came back after its record "
+								+ "was written, the rows must be ORDER BY the unique_ID to stream them");
+					}
+					current_id = id;
+					newRecord(current, id, line);
+				}
+			} else {
+				int row = into.find(id);
+				if( row >= 0 ) {
+					if( incremental ) {
+						checkWatermark(into, row, line);
+					}
+					addRow(into, row, id, line);
+				} else {
+					newRecord(into, id, line);
+				}
+			}    			
+    	}
+    	
+    	void finish() throws IOException {
+    		if( streaming && current_id != null ) {
+    			writeRecord(current, 0);
+    			current.clear();
+    			current_id = null;
+    		}
+    	}
+    }
+    
+    
+    /* checkWatermark - all of a record's rows must have the same
+     * modified time.  If it's per row, only the changed rows would be
+     * fetched and the merge would lose the rest of the record.
+     */
+    
+    private void checkWatermark(RecordStore store, int row, String[] line) throws IOException {
+    	String v = store.get(row, watermark_column);
+    	String w = line[watermark_column];
+    	if( v == null ? w != null : !v.equals(w) ) {
+    		throw new IOException("Query " + name + ": ID '" + store.key(row) + "' has rows modified at "
+    				+ v + " and " + w + ", the incremental column must be the MAX() for the record");
+    	}
+    }
+    
+    
+    /* newRecord - build a record from the first row seen for an ID */
+    
+    private int newRecord(RecordStore store, String id, String[] line) {
+    	int row = store.add(id);
+		for( int i = 0; i < n_infields; i++ ) {
+			store.set(row, i, line[i]);
+		}
+		if( trace ) {
+			log.debug("Storing record with id = '" + id + "'");
+		}
+		return row;
+    }
+    
+    
+    /* addRow - fold a further row with an already-seen ID into its record */
+    
+    private void addRow(RecordStore store, int row, String id, String[] line) {
+		if( has_fors ) {
+			setFOR(store, row, line[fors_column]);
+		} else {
+			log.debug("Warning: multiple records with ID='" + id + "'");
+		} 
+    }
+    
+    
+    private void setFOR(RecordStore store, int row, String FOR) {
     	boolean setfor = false;
     	for( int j = 0; j < max_fors && !setfor; j++ ) {
-    		String field = fors_prefix + "_" + (j + 1);
-    		if( ! record.containsKey(field) ) {
-    			record.put(field, StringUtils.trim(FOR));
+    		if( store.get(row, for_columns[j]) == null ) {
+    			store.set(row, for_columns[j], FOR);
     			setfor = true;
     		}
     	}
     	if( !setfor ) {
-    		String id = record.get(infields.get(primary_key_column));
+    		String id = store.key(row);
     		log.warn("Warning: more than " + max_fors + " FOR codes on ID=" + id);
     	}
     }
     
 
-    public void printCSV() {
-    	FileWriter fw = null;
-    	CSVPrinter csv = null;
-
-    	CSVStrategy csv_settings = (CSVStrategy)CSVStrategy.DEFAULT_STRATEGY.clone();
-    	
-    	csv_settings.setIgnoreTrailingWhitespaces(true);
+    /* printCSV - writes every outfields list to its own file, each on
+     * its own thread, apart from those which a PostProcess will write.  Returns false if any of the files couldn't be
+     * written, in which case the previous version of that file is left
+     * alone.
+     */
+    
+    public boolean printCSV() {
+    	if( streaming ) {
+    		log.debug("Feed " + name + " was streamed, nothing more to write");
+    		return true;
+    	}
     	
-    	String path = dir + '/' + file;
+    	final ArrayList<Projection> now = new ArrayList<Projection>();
+    	for( Projection p: projections ) {
+    		if( !p.isDeferred() ) {
+    			now.add(p);
+    		}
+    	}
     	
-    	log.debug("Writing CSV to " + path);
+    	if( now.isEmpty() ) {
+    		return true;
+    	}
     	
-    	try {
-    		fw = new FileWriter(path);
-    	} catch(Exception e) {
-    		e.printStackTrace();
-    		System.exit(1);
+    	if( now.size() == 1 ) {
+    		return writeProjection(now.get(0));
     	}
     	
-    	try {
-    		csv = new CSVPrinter(fw, csv_settings);
-    	} catch(Exception e) {
-    		e.printStackTrace();
-    		System.exit(1);
+    	ExecutorService executor = Executors.newFixedThreadPool(now.size());
+    	ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+    	for( final Projection p: now ) {
+    		results.add(executor.submit(new Callable<Boolean>() {
+    			public Boolean call() {
+    				return Boolean.valueOf(writeProjection(p));
+    			}
+    		}));
     	}
     	
-    	String[] csvheader = new String[n_outfields];
-    	for( int i = 0; i < n_outfields; i++ ) {
-    		csvheader[i] = outfields.get(i);
+    	boolean ok = true;
+    	for( int i = 0; i < results.size(); i++ ) {
+    		try {
+    			ok = results.get(i).get().booleanValue() && ok;
+    		} catch( Exception e ) {
+    			log.error("Writing " + now.get(i).getFile() + " failed", e);
+    			ok = false;
+    		}
+    	}
+    	executor.shutdown();
+    	return ok;
+    }
+    
+    
+    private boolean writeProjection(Projection p) {
+    	if( !p.open(dir) ) {
+    		return false;
     	}
- 
-		try {
-			csv.println(csvheader);
-		} catch( Exception e ) {
-			e.printStackTrace();
-			System.exit(1);
-		}
     	
+    	boolean ok = true;
+    	try {
+    		p.writeAll(records);
+    	} catch( IOException e ) {
+    		log.error("Failed to write CSV line to " + p.getFile(), e);
+    		ok = false;
+    	}
     	
-    	for( Map.Entry<String, HashMap<String, String>> item: records.entrySet()  ) {
-    		String id = item.getKey();
-    		HashMap<String, String> record = item.getValue();
-    		
-    		String[] csvline = new String[n_outfields];
-    		for ( int i = 0; i < n_outfields; i++ ) {
-    			String field = outfields.get(i);
-    			if( record.containsKey(field) ) { 
-    				csvline[i] = record.get(field);
-    			} else {
-    				csvline[i] = "";
+    	return p.close(ok) && ok;
+    }
+    
+    
+    /* openCSV - when streaming, all of the files are open at once and
+     * each record is written to each of them in turn.  If resumable and
+     * there's a journal, the files are checkpointed as they're written,
+     * and if the last run left a checkpoint they're picked up from it.
+     */
+    
+    private boolean openCSV(boolean resumable) {
+    	written = 0;
+    	resume_key = null;
+    	checkpointing = resumable && journal != null && checkpoint_every > 0;
+    	for( Projection p: projections ) {
+    		if( !p.isResumable() ) {
+    			checkpointing = false;
+    		}
+    	}
+    	if( checkpointing ) {
+    		if( resumeCSV() ) {
+    			return true;
+    		}
+    		try {
+    			journal.discard(name);
+    		} catch( IOException e ) {
+    			log.error("Couldn't update run journal", e);
+    			return false;
+    		}
+    	}
+    	boolean ok = true;
+    	for( Projection p: projections ) {
+    		ok = p.open(dir) && ok;
+    	}
+    	if( !ok ) {
+    		closeCSV(false);
+    	}
+    	return ok;
+    }
+    
+    
+    /* resumeCSV - reopens the files from the last checkpoint.  The rows
+     * are read from the start again, and the records are skipped up to
+     * and including the checkpointed key, which relies on the records
+     * coming in the same order every time.
+     */
+    
+    private boolean resumeCSV() {
+    	long[] offsets = journal.getOffsets(name, projections.size());
+    	if( offsets == null ) {
+    		return false;
+    	}
+    	for( int i = 0; i < projections.size(); i++ ) {
+    		if( !projections.get(i).resume(dir, offsets[i]) ) {
+    			for( int j = 0; j < i; j++ ) {
+    				projections.get(j).suspend();
     			}
+    			log.warn("Query " + name + ": can't resume, starting again");
+    			return false;
     		}
-    		if( trace ) {
-    			log.debug("Writing CSV, ID = '" + id + "': " + StringUtils.join(csvline, ','));
+    	}
+    	resume_key = journal.getKey(name);
+    	written = (int)journal.getRows(name);
+    	log.info("Query " + name + ": resuming after " + written + " records, from ID = '" + resume_key + "'");
+    	return true;
+    }
+    
+    
+    private synchronized void writeRecord(RecordStore store, int row) throws IOException {
+    	if( resume_key != null ) {
+    		if( resume_key.equals(store.key(row)) ) {
+    			resume_key = null;
     		}
+    		return;
+    	}
+    	for( Projection p: projections ) {
+    		p.write(store, row);
+    	}
+    	written++;
+		if( trace ) {
+			log.debug("Wrote CSV, ID = '" + store.key(row) + "'");
+		}
+		if( checkpointing && written % checkpoint_every == 0 ) {
+			checkpoint(store.key(row));
+		}
+    }
+    
+    
+    private void checkpoint(String key) throws IOException {
+    	long[] offsets = new long[projections.size()];
+    	for( int i = 0; i < offsets.length; i++ ) {
+    		offsets[i] = projections.get(i).checkpoint();
+    	}
+    	journal.checkpoint(name, key, written, offsets);
+    }
+    
+    
+    /* closeCSV - if the feed failed after a checkpoint, the files are
+     * kept for the next run to resume.  If the checkpointed key never
+     * turned up the rows must have changed, so the files are thrown
+     * away and the next run starts again.
+     */
+    
+    private boolean closeCSV(boolean ok) {
+    	if( ok && resume_key != null ) {
+    		log.error("Query " + name + ": the checkpointed ID '" + resume_key 
+    				+ "' wasn't in the rows, can't resume");
+    		resume_key = null;
     		try {
-    			csv.println(csvline);
-    		} catch( Exception e ) {
-    			log.error("Failed to print CSV line");
-    			e.printStackTrace();
-    			System.exit(1);
+    			journal.discard(name);
+    		} catch( IOException e ) {
+    			log.error("Couldn't update run journal", e);
+    		}
+    		ok = false;
+    	} else if( !ok && checkpointing && journal.getKey(name) != null ) {
+    		log.warn("Query " + name + ": keeping the files to resume after ID = '" 
+    				+ journal.getKey(name) + "'");
+    		for( Projection p: projections ) {
+    			p.suspend();
     		}
+    		return false;
     	}
-    	try{
-    		fw.close();
-    	} catch(Exception e) {
-    		e.printStackTrace();
-    		System.exit(1);
+    	boolean closed = true;
+    	for( Projection p: projections ) {
+    		closed = p.close(ok) && closed;
+    	}
+    	return closed;
+    }
+    
+    
+    /* commitIndexes - moves the delta indexes into place once the run
+     * has worked
+     */
+    
+    public boolean commitIndexes() {
+    	boolean ok = true;
+    	for( Projection p: projections ) {
+    		try {
+    			p.commitIndex(dir);
+    		} catch( IOException e ) {
+    			log.error("Couldn't save the delta index for " + p.getFile(), e);
+    			ok = false;
+    		}
     	}
+    	return ok;
     }
     
     
@@ -0,0 +1,127 @@
+package mintIntegration;
+
+/* FieldNormaliser - tidies up a field value from the database in a
+ * single pass.  The steps, each of which can be switched on or off per
+ * field, are:
+ *
+ * newlines - replace \n with <br />
+ * cr       - remove \r
+ * trim     - remove leading and trailing whitespace
+ * null     - convert null to ""
+ * html     - replace HTML tags with a space, as the bio cleanup in
+ *            pp2_test_profile_urls.pl does.  Newlines become spaces
+ *            rather than <br /> when this is on.
+ *
+ * If none of these changes anything the original String is returned,
+ * so the common case doesn't allocate anything.
+ */
+
+public class FieldNormaliser {
+
+	public static final String DEFAULT_STEPS = "newlines,cr,trim,null";
+
+	private boolean newlines;
+	private boolean cr;
+	private boolean trim;
+	private boolean nulls;
+	private boolean html;
+
+
+	/* FieldNormaliser - steps is a comma-separated list of steps, eg
+	 * "cr,trim"
+	 */
+
+	FieldNormaliser(String steps) throws IllegalArgumentException {
+		newlines = false;
+		cr = false;
+		trim = false;
+		nulls = false;
+		html = false;
+		for( String step: steps.split(",") ) {
+			step = step.trim();
+			if( step.equals("newlines") ) {
+				newlines = true;
+			} else if( step.equals("cr") ) {
+				cr = true;
+			} else if( step.equals("trim") ) {
+				trim = true;
+			} else if( step.equals("null") ) {
+				nulls = true;
+			} else if( step.equals("html") ) {
+				html = true;
+			} else if( step.length() > 0 ) {
+				throw new IllegalArgumentException("Unknown normalisation step '" + step + "'");
+			}
+		}
+	}
+
+
+	public String normalise(String s) {
+		if( s == null ) {
+			if( nulls ) {
+				return "";
+			}
+			return null;
+		}
+		int len = s.length();
+		int start = 0;
+		int end = len;
+		if( trim ) {
+			while( start < end && trimmable(s.charAt(start)) ) {
+				start++;
+			}
+			while( end > start && trimmable(s.charAt(end - 1)) ) {
+				end--;
+			}
+		}
+		boolean changes = false;
+		for( int i = start; i < end && !changes; i++ ) {
+			char c = s.charAt(i);
+			if( (c == '\n' && newlines) || (c == '\r' && cr) || (c == '<' && html) ) {
+				changes = true;
+			}
+		}
+		if( !changes ) {
+			if( start == 0 && end == len ) {
+				return s;
+			}
+			return s.substring(start, end);
+		}
+
+		StringBuilder b = new StringBuilder(end - start + 16);
+		for( int i = start; i < end; i++ ) {
+			char c = s.charAt(i);
+			if( c == '\n' && newlines ) {
+				if( html ) {
+					b.append(' ');
+				} else {
+					b.append("<br />");
+				}
+			} else if( c == '\r' && cr ) {
+				continue;
+			} else if( c == '<' && html ) {
+				int close = s.indexOf('>', i + 1);
+				if( close > i + 1 ) {
+					b.append(' ');
+					i = close;
+				} else {
+					b.append(c);
+				}
+			} else {
+				b.append(c);
+			}
+		}
+		String result = b.toString();
+		if( trim ) {
+			result = result.trim();
+		}
+		return result;
+	}
+
+
+	/* whitespace, apart from newlines if they're being turned into <br /> */
+
+	private boolean trimmable(char c) {
+		return c <= ' ' && !(c == '\n' && newlines && !html);
+	}
+}
@@ -0,0 +1,53 @@
+package mintIntegration;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+/* FileUtil - what the classes which write their own files have in
+ * common, so that they all do it the same way: a temporary file which
+ * is moved into place, so that a run which dies part-way through leaves
+ * the last good copy, and strings as a length and UTF-8.
+ */
+
+public class FileUtil {
+
+
+	/* replace - renames temp to file, replacing it.  renameTo won't
+	 * replace an existing file on some platforms, so if it fails the old
+	 * file is deleted and it's tried again.
+	 */
+
+	public static void replace(File temp, File file) throws IOException {
+		if( !temp.renameTo(file) ) {
+			if( !(file.delete() && temp.renameTo(file)) ) {
+				throw new IOException("Couldn't rename " + temp + " to " + file);
+			}
+		}
+	}
+
+
+	/* Strings are written as a byte length (-1 for null) and UTF-8 */
+
+	public static void writeString(DataOutputStream out, String s) throws IOException {
+		if( s == null ) {
+			out.writeInt(-1);
+		} else {
+			byte[] b = s.getBytes("UTF-8");
+			out.writeInt(b.length);
+			out.write(b);
+		}
+	}
+
+
+	public static String readString(DataInputStream in) throws IOException {
+		int len = in.readInt();
+		if( len < 0 ) {
+			return null;
+		}
+		byte[] b = new byte[len];
+		in.readFully(b);
+		return new String(b, "UTF-8");
+	}
+}
@@ -0,0 +1,274 @@
+package mintIntegration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* GroupHierarchy - the tree of groups (AOUs and the managing units
+ * merged in with them) given by their Parent_Group_ID, indexed by row
+ * in the groups' RecordStore.
+ *
+ * Built in O(n) without recursion: each group's parent is looked up
+ * once, the children are linked into lists, and the trees are walked
+ * depth-first with an explicit stack to get a preorder, in which every
+ * group comes after its parent and each group's descendants are the
+ * groups straight after it.
+ *
+ * An orphan is a group whose parent ID isn't a group.  Orphans and
+ * their descendants are walked after the proper trees, so that they
+ * can be kept or left out.  Groups which can't be reached from either
+ * are in, or hang off, a parent cycle, and aren't in the order at all.
+ */
+
+public class GroupHierarchy {
+
+    private static Logger log = LoggerFactory.getLogger(GroupHierarchy.class);
+
+	private RecordStore groups;
+	private int parent_col;
+
+	/* parent row, or -1 for a root or an orphan */
+	private int[] parent;
+	private boolean[] orphan;
+
+	/* preorder of the rooted trees and then the orphans' trees */
+	private int[] preorder;
+	private int n_rooted;
+	private int n_ordered;
+
+	/* position of each row in preorder (-1 if in a cycle), and the
+	 * number of groups in its subtree including itself */
+	private int[] position;
+	private int[] subtree;
+
+	/* topmost ancestor of each row, or -1 if in a cycle */
+	private int[] top;
+
+
+	GroupHierarchy(RecordStore groups, String parent_field) {
+		this.groups = groups;
+		parent_col = groups.column(parent_field);
+		int n = groups.size();
+
+		parent = new int[n];
+		orphan = new boolean[n];
+		int[] first_child = new int[n];
+		int[] next_sibling = new int[n];
+		Arrays.fill(first_child, -1);
+		Arrays.fill(next_sibling, -1);
+
+		// linked backwards, so that each child list and the lists of
+		// roots and orphans come out in store order
+		int first_root = -1;
+		int first_orphan = -1;
+		int[] next_start = new int[n];
+		for( int r = n - 1; r >= 0; r-- ) {
+			String p = groups.get(r, parent_col);
+			parent[r] = -1;
+			if( p == null || p.length() == 0 ) {
+				next_start[r] = first_root;
+				first_root = r;
+			} else {
+				int pr = groups.find(p);
+				if( pr < 0 ) {
+					orphan[r] = true;
+					next_start[r] = first_orphan;
+					first_orphan = r;
+				} else {
+					parent[r] = pr;
+					next_sibling[r] = first_child[pr];
+					first_child[pr] = r;
+				}
+			}
+		}
+
+		preorder = new int[n];
+		position = new int[n];
+		Arrays.fill(position, -1);
+		int[] stack = new int[n];
+		n_ordered = 0;
+		for( int pass = 0; pass < 2; pass++ ) {
+			int start = ( pass == 0 ) ? first_root : first_orphan;
+			for( int s = start; s >= 0; s = next_start[s] ) {
+				int sp = 0;
+				stack[sp++] = s;
+				while( sp > 0 ) {
+					int g = stack[--sp];
+					position[g] = n_ordered;
+					preorder[n_ordered++] = g;
+					// push the children so that the first is popped first
+					int m = 0;
+					for( int c = first_child[g]; c >= 0; c = next_sibling[c] ) {
+						m++;
+					}
+					int t = sp + m;
+					for( int c = first_child[g]; c >= 0; c = next_sibling[c] ) {
+						stack[--t] = c;
+					}
+					sp += m;
+				}
+			}
+			if( pass == 0 ) {
+				n_rooted = n_ordered;
+			}
+		}
+
+		// subtree sizes bottom-up, tops top-down, both off the preorder
+		subtree = new int[n];
+		for( int i = n_ordered - 1; i >= 0; i-- ) {
+			int g = preorder[i];
+			subtree[g] += 1;
+			if( parent[g] >= 0 ) {
+				subtree[parent[g]] += subtree[g];
+			}
+		}
+		top = new int[n];
+		Arrays.fill(top, -1);
+		for( int i = 0; i < n_ordered; i++ ) {
+			int g = preorder[i];
+			top[g] = ( parent[g] < 0 ) ? g : top[parent[g]];
+		}
+	}
+
+
+	/* report - logs a summary of the orphans and cycles */
+
+	public void report() {
+		List<String> orphans = getOrphans();
+		if( !orphans.isEmpty() ) {
+			log.warn(orphans.size() + " groups have a Parent_Group_ID which isn't a group: " + orphans);
+		}
+		List<String> cycles = getCycles();
+		if( !cycles.isEmpty() ) {
+			log.error(cycles.size() + " groups are in or under a parent cycle: " + cycles);
+		}
+	}
+
+
+	public RecordStore getGroups() {
+		return groups;
+	}
+
+
+	/* order - rows with every group after its parent: the rooted trees,
+	 * then the orphans' trees if with_orphans.  Never includes cycles.
+	 */
+
+	public int[] order(boolean with_orphans) {
+		return Arrays.copyOf(preorder, with_orphans ? n_ordered : n_rooted);
+	}
+
+
+	/* parent - the parent's row, or -1 */
+
+	public int parent(int row) {
+		return parent[row];
+	}
+
+
+	/* parentId - the raw Parent_Group_ID, which for an orphan isn't a group */
+
+	public String parentId(int row) {
+		return groups.get(row, parent_col);
+	}
+
+
+	public boolean isOrphan(int row) {
+		return orphan[row];
+	}
+
+
+	public boolean inCycle(int row) {
+		return position[row] < 0;
+	}
+
+
+	/* ancestors - parent first, up to the root.  For a group in or
+	 * under a cycle it stops before going round again.
+	 */
+
+	public int[] ancestors(int row) {
+		int n = 0;
+		int[] a = new int[8];
+		BitSet seen = null;
+		if( inCycle(row) ) {
+			seen = new BitSet(parent.length);
+			seen.set(row);
+		}
+		for( int p = parent[row]; p >= 0; p = parent[p] ) {
+			if( seen != null ) {
+				if( seen.get(p) ) {
+					break;
+				}
+				seen.set(p);
+			}
+			if( n == a.length ) {
+				a = Arrays.copyOf(a, n * 2);
+			}
+			a[n++] = p;
+		}
+		return Arrays.copyOf(a, n);
+	}
+
+
+	/* top - the topmost ancestor (the group itself for a root), or -1
+	 * for a group in a cycle
+	 */
+
+	public int top(int row) {
+		return top[row];
+	}
+
+
+	/* faculty - the ID of the top of the group's tree: the root's ID,
+	 * or for an orphan's tree, the missing parent ID.  Null in a cycle.
+	 */
+
+	public String faculty(int row) {
+		int t = top[row];
+		if( t < 0 ) {
+			return null;
+		}
+		if( orphan[t] ) {
+			return parentId(t);
+		}
+		return groups.key(t);
+	}
+
+
+	/* descendants - all of the groups below this one, in preorder */
+
+	public int[] descendants(int row) {
+		if( position[row] < 0 ) {
+			return new int[0];
+		}
+		int from = position[row] + 1;
+		return Arrays.copyOfRange(preorder, from, from + subtree[row] - 1);
+	}
+
+
+	public List<String> getOrphans() {
+		ArrayList<String> ids = new ArrayList<String>();
+		for( int r = 0; r < orphan.length; r++ ) {
+			if( orphan[r] ) {
+				ids.add(groups.key(r));
+			}
+		}
+		return ids;
+	}
+
+
+	public List<String> getCycles() {
+		ArrayList<String> ids = new ArrayList<String>();
+		for( int r = 0; r < position.length; r++ ) {
+			if( position[r] < 0 ) {
+				ids.add(groups.key(r));
+			}
+		}
+		return ids;
+	}
+}
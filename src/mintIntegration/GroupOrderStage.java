@@ -0,0 +1,30 @@
+package mintIntegration;
+
+/* GroupOrderStage - sort_groups_hierarchically from pp1: puts the
+ * groups in an order where every group comes after its parent, so
+ * that Mint has harvested a parent before anything links to it.
+ *
+ * Orphans (groups whose parent isn't there) and their descendants are
+ * left out, as the Perl did, unless orphans="keep", when they go at the
+ * end.  Groups in a parent cycle are always left out.  Either way the
+ * GroupHierarchy reports them.
+ */
+
+public class GroupOrderStage implements Stage {
+
+	private String query;
+	private boolean keep_orphans;
+
+
+	GroupOrderStage(String query, boolean keep_orphans) {
+		this.query = query;
+		this.keep_orphans = keep_orphans;
+	}
+
+
+	public RecordStore apply(RecordStore groups, PostProcess pp) {
+		GroupHierarchy h = pp.getHierarchy(query);
+		int[] order = h.order(keep_orphans);
+		return groups.select(order, order.length);
+	}
+}
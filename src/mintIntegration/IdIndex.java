@@ -0,0 +1,170 @@
+package mintIntegration;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/* IdIndex - staff IDs to encrypted IDs and back, written by the
+ * encrypt_ids stage so that an ID seen in RDA can be looked up without
+ * the key.  Only IDs which were in the feed are in it.
+ *
+ * The file is a 16 byte header (magic number, version, count) and then
+ * each pair twice, packed into a long: first sorted by staff ID, with
+ * the staff ID in the high 32 bits, then sorted by encrypted ID, with
+ * that in the high bits.  It's memory-mapped and looked up by binary
+ * search in whichever half is sorted the right way.
+ */
+
+public class IdIndex {
+
+	private static int MAGIC = 0x4D494458;
+	private static int VERSION = 1;
+	private static int HEADER = 16;
+
+	private int size;
+	private LongBuffer by_staff;
+	private LongBuffer by_encrypted;
+
+
+	private IdIndex(LongBuffer by_staff, LongBuffer by_encrypted, int size) {
+		this.by_staff = by_staff;
+		this.by_encrypted = by_encrypted;
+		this.size = size;
+	}
+
+
+	/* write - staff[i] encrypts to encrypted[i], for i < n */
+
+	public static void write(File file, int[] staff, int[] encrypted, int n) throws IOException {
+		long[] a = new long[n];
+		long[] b = new long[n];
+		for( int i = 0; i < n; i++ ) {
+			a[i] = pack(staff[i], encrypted[i]);
+			b[i] = pack(encrypted[i], staff[i]);
+		}
+		Arrays.sort(a);
+		Arrays.sort(b);
+
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(n);
+			out.writeInt(0);
+			for( int i = 0; i < n; i++ ) {
+				out.writeLong(a[i]);
+			}
+			for( int i = 0; i < n; i++ ) {
+				out.writeLong(b[i]);
+			}
+		} finally {
+			out.close();
+		}
+		FileUtil.replace(temp, file);
+	}
+
+
+	public static IdIndex open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if( channel.size() < HEADER ) {
+				throw new IOException(file + " isn't an ID index");
+			}
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if( buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION ) {
+				throw new IOException(file + " isn't an ID index");
+			}
+			int n = buf.getInt(8);
+			if( channel.size() != HEADER + 16L * n ) {
+				throw new IOException(file + " is truncated");
+			}
+			buf.position(HEADER);
+			LongBuffer all = buf.slice().asLongBuffer();
+			all.limit(n);
+			LongBuffer by_staff = all.slice();
+			all.limit(2 * n);
+			all.position(n);
+			LongBuffer by_encrypted = all.slice();
+			return new IdIndex(by_staff, by_encrypted, n);
+		} finally {
+			raf.close();
+		}
+	}
+
+
+	public int size() {
+		return size;
+	}
+
+
+	/* staffId - the staff ID for an encrypted ID, or -1 */
+
+	public long staffId(int encrypted) {
+		return find(by_encrypted, encrypted);
+	}
+
+
+	/* encryptedId - the encrypted ID for a staff ID, or -1 */
+
+	public long encryptedId(int staff) {
+		return find(by_staff, staff);
+	}
+
+
+	/* staffIds - a batch of staffId(), with -1 for those not found */
+
+	public long[] staffIds(int[] encrypted) {
+		long[] result = new long[encrypted.length];
+		for( int i = 0; i < encrypted.length; i++ ) {
+			result[i] = find(by_encrypted, encrypted[i]);
+		}
+		return result;
+	}
+
+
+	public long[] encryptedIds(int[] staff) {
+		long[] result = new long[staff.length];
+		for( int i = 0; i < staff.length; i++ ) {
+			result[i] = find(by_staff, staff[i]);
+		}
+		return result;
+	}
+
+
+	/* find - the low half, as an unsigned int, of the entry whose
+	 * high half is key
+	 */
+
+	private long find(LongBuffer half, int key) {
+		int lo = 0;
+		int hi = size - 1;
+		while( lo <= hi ) {
+			int mid = (lo + hi) >>> 1;
+			long entry = half.get(mid);
+			int k = (int)(entry >> 32);
+			if( k < key ) {
+				lo = mid + 1;
+			} else if( k > key ) {
+				hi = mid - 1;
+			} else {
+				return entry & 0xFFFFFFFFL;
+			}
+		}
+		return -1;
+	}
+
+
+	private static long pack(int high, int low) {
+		return ((long)high << 32) | (low & 0xFFFFFFFFL);
+	}
+}
@@ -0,0 +1,97 @@
+package mintIntegration;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.regex.Pattern;
+
+/* IdLookup - looks staff IDs and encrypted IDs up in the IdIndex which
+ * the encrypt_ids stage writes, in place of pp1_fix_ids_and_groups.pl -i,
+ * and works in both directions.
+ *
+ *   java mintIntegration.IdLookup INDEX ID ...
+ *   java mintIntegration.IdLookup INDEX -f FILE     (one ID a line, - for stdin)
+ *
+ * For each ID it prints the ID, the staff ID and the encrypted ID,
+ * separated by tabs.  An 8 digit ID is tried both ways, since it could
+ * be either; an ID which isn't in the index gets a line with the other
+ * two columns empty.
+ */
+
+public class IdLookup {
+
+	private static Pattern HEX8 = Pattern.compile("[0-9A-Fa-f]{8}");
+	private static Pattern DIGITS = Pattern.compile("[0-9]{1,10}");
+
+	public static void main(String[] args) {
+		if( args.length < 2 ) {
+			System.err.println("Usage: IdLookup INDEX ID ... | IdLookup INDEX -f FILE");
+			System.exit(2);
+		}
+		try {
+			IdIndex index = IdIndex.open(new File(args[0]));
+			long start = System.currentTimeMillis();
+			int n = 0;
+			StringBuilder out = new StringBuilder();
+			if( args[1].equals("-f") && args.length > 2 ) {
+				BufferedReader in = null;
+				if( args[2].equals("-") ) {
+					in = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+				} else {
+					in = new BufferedReader(new FileReader(args[2]));
+				}
+				try {
+					String line;
+					while( (line = in.readLine()) != null ) {
+						line = line.trim();
+						if( line.length() > 0 ) {
+							lookup(index, line, out);
+							n++;
+							if( out.length() > 1 << 16 ) {
+								System.out.print(out);
+								out.setLength(0);
+							}
+						}
+					}
+				} finally {
+					in.close();
+				}
+			} else {
+				for( int i = 1; i < args.length; i++ ) {
+					lookup(index, args[i], out);
+					n++;
+				}
+			}
+			System.out.print(out);
+			System.out.flush();
+			System.err.println(n + " lookups in " + (System.currentTimeMillis() - start) + " ms");
+		} catch( IOException e ) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+
+
+	private static void lookup(IdIndex index, String id, StringBuilder out) {
+		boolean found = false;
+		if( HEX8.matcher(id).matches() ) {
+			long staff = index.staffId(Skip32.fromHex8(id));
+			if( staff >= 0 ) {
+				out.append(id).append('\t').append(staff).append('\t').append(id.toLowerCase()).append('\n');
+				found = true;
+			}
+		}
+		if( DIGITS.matcher(id).matches() && Long.parseLong(id) <= 0xFFFFFFFFL ) {
+			long encrypted = index.encryptedId((int)Long.parseLong(id));
+			if( encrypted >= 0 ) {
+				out.append(id).append('\t').append(id).append('\t').append(Skip32.toHex((int)encrypted)).append('\n');
+				found = true;
+			}
+		}
+		if( !found ) {
+			out.append(id).append("\t\t\n");
+		}
+	}
+}
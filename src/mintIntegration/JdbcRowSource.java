@@ -0,0 +1,91 @@
+package mintIntegration;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* JdbcRowSource - runs a query on a database connection.
+ *
+ * The statement is forward-only and read-only, as JDBC has it by
+ * default.  Whether the rows are streamed from a server-side cursor or
+ * all read into memory by the driver depends on the connection: jTDS
+ * only uses a cursor if the connection has useCursors=true, which
+ * StaffModuleFeeder sets for feeds with server_cursor.  fetch_size is
+ * how many rows come back per round trip, which for a jTDS cursor is
+ * how many rows are held at once.
+ */
+
+public class JdbcRowSource implements RowSource {
+
+    private static Logger log = LoggerFactory.getLogger(JdbcRowSource.class);
+
+	private Connection con;
+	private List<Object> params;
+	private int fetch_size;
+	private int timeout;
+	private PreparedStatement stmt;
+	private ResultSet rset;
+
+
+	/* JdbcRowSource - runs a query on con, which close() leaves open,
+	 * binding params to its ?s.  fetch_size is rows per round trip and
+	 * timeout the query timeout in seconds; 0 leaves either to the driver.
+	 */
+
+	JdbcRowSource(Connection con, List<Object> params, int fetch_size, int timeout) {
+		this.con = con;
+		this.params = params;
+		this.fetch_size = fetch_size;
+		this.timeout = timeout;
+	}
+
+
+	public int open(String query) throws SQLException {
+		if( con == null ) {
+			throw new SQLException("No database connection");
+		}
+		stmt = con.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		if( fetch_size > 0 ) {
+			stmt.setFetchSize(fetch_size);
+		}
+		if( timeout > 0 ) {
+			stmt.setQueryTimeout(timeout);
+		}
+		for( int i = 0; i < params.size(); i++ ) {
+			stmt.setObject(i + 1, params.get(i));
+		}
+		rset = stmt.executeQuery();
+		return rset.getMetaData().getColumnCount();
+	}
+
+
+	public boolean next() throws SQLException {
+		return rset.next();
+	}
+
+
+	public String get(int col) throws SQLException {
+		return rset.getString(col + 1);
+	}
+
+
+	public void close() {
+		try {
+			if( rset != null ) {
+				rset.close();
+			}
+			if( stmt != null ) {
+				stmt.close();
+			}
+		} catch( SQLException e ) {
+			log.warn("Error closing statement", e);
+		}
+		rset = null;
+		stmt = null;
+	}
+}
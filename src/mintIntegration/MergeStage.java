@@ -0,0 +1,44 @@
+package mintIntegration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* MergeStage - adds another query's records, matching up the fields by
+ * name, as pp1 did to put the managing units in with the AOUs.  A key
+ * which is already there is kept and the other record is skipped.
+ */
+
+public class MergeStage implements Stage {
+
+    private static Logger log = LoggerFactory.getLogger(MergeStage.class);
+
+	private String from;
+
+
+	MergeStage(String from) {
+		this.from = from;
+	}
+
+
+	public RecordStore apply(RecordStore records, PostProcess pp) {
+		RecordStore other = pp.getRecords(from);
+		int[] map = new int[other.width()];
+		for( int c = 0; c < map.length; c++ ) {
+			map[c] = records.column(other.field(c));
+		}
+		for( int r = 0; r < other.size(); r++ ) {
+			String key = other.key(r);
+			if( records.containsKey(key) ) {
+				log.warn(from + " key clash: " + key);
+				continue;
+			}
+			int row = records.add(key);
+			for( int c = 0; c < map.length; c++ ) {
+				if( map[c] >= 0 ) {
+					records.set(row, map[c], other.get(r, c));
+				}
+			}
+		}
+		return records;
+	}
+}
@@ -0,0 +1,150 @@
+package mintIntegration;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.lang.StringUtils;
+
+/* Partitioning - splits a query into key ranges which can be run
+ * concurrently on separate connections.  Configured in the query 
+ * like so:
+ * 
+ * <partitions column="s.STAFF_ID" scheme="modulo" count="4" />
+ * 
+ * or
+ * 
+ * <partitions column="s.STAFF_ID" scheme="range">
+ *   <bound>100000</bound>
+ *   <bound>200000</bound>
+ * </partitions>
+ * 
+ * The SQL must contain the token $PARTITION where the partition's 
+ * predicate is to go, eg "WHERE s.ACTIVE = 1 AND $PARTITION".  The
+ * column should be the one the unique_ID field comes from, so that
+ * all of the rows for a record end up in the same partition.
+ *
+ * modulo takes the column through SQL Server's CHECKSUM() first, so
+ * that it works for varchar keys as well as numbers, and the remainder
+ * is made positive.  For another database, hash="" leaves the column
+ * as it is (it must then be an integer), or hash="NAME" uses another
+ * function.  The bounds of a range must be in ascending order.  Rows
+ * where the column is NULL go in partition 0 in either scheme.
+ */
+
+public class Partitioning {
+
+	public static final String TOKEN = "$PARTITION";
+	
+	private String column;
+	private String hash;
+	private boolean modulo;
+	private int count;
+	private String[] bounds;
+	
+	
+	private Partitioning(String column, String hash, boolean modulo, int count, String[] bounds) {
+		this.column = column;
+		this.hash = hash;
+		this.modulo = modulo;
+		this.count = count;
+		this.bounds = bounds;
+	}
+	
+	
+	/* fromConfig - returns null if the query isn't partitioned */
+	
+	static Partitioning fromConfig(Configuration conf) throws IllegalArgumentException {
+		String column = conf.getString("partitions[@column]");
+		if( column == null ) {
+			return null;
+		}
+		String scheme = conf.getString("partitions[@scheme]", "modulo");
+		if( scheme.equals("modulo") ) {
+			int count = conf.getInt("partitions[@count]", 1);
+			if( count < 1 ) {
+				throw new IllegalArgumentException("partitions count must be at least 1");
+			}
+			String hash = conf.getString("partitions[@hash]", "CHECKSUM");
+			return new Partitioning(column, hash, true, count, null);
+		} else if( scheme.equals("range") ) {
+			List<?> b = conf.getList("partitions.bound");
+			String[] bounds = new String[b.size()];
+			for( int i = 0; i < bounds.length; i++ ) {
+				bounds[i] = b.get(i).toString().trim();
+				if( i > 0 && !ascending(bounds[i - 1], bounds[i]) ) {
+					throw new IllegalArgumentException("partition bounds must be in ascending order: " 
+							+ bounds[i - 1] + " isn't below " + bounds[i]);
+				}
+			}
+			return new Partitioning(column, null, false, bounds.length + 1, bounds);
+		} else {
+			throw new IllegalArgumentException("Unknown partition scheme '" + scheme + "'");
+		}
+	}
+	
+	
+	/* ascending - a < b, as numbers if they both are, otherwise as
+	 * strings (quoted or not)
+	 */
+	
+	private static boolean ascending(String a, String b) {
+		try {
+			return new BigDecimal(a).compareTo(new BigDecimal(b)) < 0;
+		} catch( NumberFormatException e ) {
+			return unquote(a).compareTo(unquote(b)) < 0;
+		}
+	}
+	
+	
+	private static String unquote(String s) {
+		if( s.length() >= 2 && s.startsWith("'") && s.endsWith("'") ) {
+			return s.substring(1, s.length() - 1);
+		}
+		return s;
+	}
+	
+	
+	public int count() {
+		return count;
+	}
+	
+	
+	/* predicate - the SQL condition selecting partition i */
+	
+	public String predicate(int i) {
+		if( count == 1 ) {
+			return "1 = 1";
+		}
+		String nulls = "";
+		if( i == 0 ) {
+			nulls = column + " IS NULL OR ";
+		}
+		if( modulo ) {
+			String h = column;
+			if( hash.length() > 0 ) {
+				h = hash + "(" + column + ")";
+			}
+			return "(" + nulls + "(" + h + " % " + count + " + " + count + ") % " + count + " = " + i + ")";
+		}
+		if( i == 0 ) {
+			return "(" + nulls + column + " < " + bounds[0] + ")";
+		} else if( i == count - 1 ) {
+			return "(" + column + " >= " + bounds[i - 1] + ")";
+		} else {
+			return "(" + column + " >= " + bounds[i - 1] + " AND " + column + " < " + bounds[i] + ")";
+		}
+	}
+	
+	
+	/* apply - the SQL for partition i */
+	
+	public String apply(String sql, int i) {
+		return StringUtils.replace(sql, TOKEN, predicate(i));
+	}
+	
+	
+	public static boolean hasToken(String sql) {
+		return sql != null && sql.indexOf(TOKEN) >= 0;
+	}
+}
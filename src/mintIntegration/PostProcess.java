@@ -0,0 +1,230 @@
+package mintIntegration;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.XMLConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* PostProcess - runs the cleaning, URL building, ID encryption and
+ * group ordering which pp1_fix_ids_and_groups.pl did, the URL checks
+ * from pp2_test_profile_urls.pl and the project filtering from
+ * projects.pl, on the feeds' records in memory, so that the raw CSVs
+ * don't have to be written out and parsed again.  Configured with a
+ * list of stages, each of which is applied to one query's records, in
+ * order:
+ *
+ * <postprocess>
+ *   <stage type="merge" query="Groups" from="ManagingUnits"/>
+ *   <stage type="clean_aous" query="Groups"/>
+ *   <stage type="profile_urls" query="People" groups="Groups"/>
+ *   <stage type="crosswalk" query="People" field="..."> ... </stage>
+ *   <stage type="verify_urls" query="People" cache="profile_urls.cache"/>
+ *   <stage type="encrypt_ids" query="People" index="staff_ids.index"/>
+ *   <stage type="order_groups" query="Groups" orphans="drop"/>
+ *   <stage type="write" query="Groups" outfields="harvest" location="harvest"/>
+ *   <stage type="write" query="People" outfields="encrypted"/>
+ *   <stage type="projects" query="People" projects="Projects" location="harvest" encrypted="1"/>
+ *   <stage type="write" query="People" outfields="filtered" location="harvest"/>
+ * </postprocess>
+ *
+ * The stages read the same <groupTidy>, <landingPageURLs> and
+ * <staffIDs> settings as the Perl did.  profile_urls is a ready-made
+ * crosswalk; see CrosswalkStage for joining other fields.  Any
+ * outfields which are written by a stage aren't written when the feed
+ * runs.
+ */
+
+public class PostProcess {
+
+    private static Logger log = LoggerFactory.getLogger(PostProcess.class);
+
+	private XMLConfiguration conf;
+	private HashMap<String, Feed> feeds;
+	private HashMap<String, RecordStore> stores;
+	private HashMap<String, GroupHierarchy> hierarchies;
+	private HashSet<String> used;
+	private ArrayList<String> types;
+	private ArrayList<String> queries;
+	private ArrayList<Stage> stages;
+
+
+	PostProcess(XMLConfiguration conf, List<Feed> feeds) {
+		this.conf = conf;
+		this.feeds = new HashMap<String, Feed>();
+		for( Feed feed: feeds ) {
+			this.feeds.put(feed.getName(), feed);
+		}
+		stores = new HashMap<String, RecordStore>();
+		hierarchies = new HashMap<String, GroupHierarchy>();
+		used = new HashSet<String>();
+		types = new ArrayList<String>();
+		queries = new ArrayList<String>();
+		stages = new ArrayList<Stage>();
+	}
+
+
+	/* fromConfig - returns null if there's no <postprocess> */
+
+	public static PostProcess fromConfig(XMLConfiguration conf, List<Feed> feeds) throws ConfigurationException {
+		if( conf.getString("postprocess.stage(0)[@type]") == null ) {
+			return null;
+		}
+		PostProcess pp = new PostProcess(conf, feeds);
+		int i = 0;
+		while( conf.getString("postprocess.stage(" + i + ")[@type]") != null ) {
+			Configuration sconf = conf.subset("postprocess.stage(" + i + ")");
+			pp.addStage(sconf.getString("[@type]"), sconf);
+			i++;
+		}
+		return pp;
+	}
+
+
+	private void addStage(String type, Configuration sconf) throws ConfigurationException {
+		String query = require(sconf.getString("[@query]"));
+		Stage stage = null;
+		if( type.equals("merge") ) {
+			stage = new MergeStage(require(sconf.getString("[@from]")));
+		} else if( type.equals("clean_aous") ) {
+			stage = new CleanAousStage(conf);
+		} else if( type.equals("profile_urls") ) {
+			stage = CrosswalkStage.profileUrls(conf, require(sconf.getString("[@groups]", "Groups")));
+		} else if( type.equals("crosswalk") ) {
+			CrosswalkStage cw = CrosswalkStage.fromConfig(conf, sconf);
+			for( String q: cw.getQueries() ) {
+				require(q);
+			}
+			stage = cw;
+		} else if( type.equals("verify_urls") ) {
+			stage = new VerifyUrlsStage(sconf, conf.getString("locations.working"));
+		} else if( type.equals("encrypt_ids") ) {
+			File index = null;
+			if( sconf.getString("[@index]") != null ) {
+				index = new File(conf.getString("locations.working"), sconf.getString("[@index]"));
+			}
+			stage = new EncryptIdsStage(conf, index);
+		} else if( type.equals("order_groups") ) {
+			stage = new GroupOrderStage(query, sconf.getString("[@orphans]", "drop").equals("keep"));
+		} else if( type.equals("write") ) {
+			String outfields = sconf.getString("[@outfields]");
+			Projection p = feeds.get(query).deferProjection(outfields);
+			if( p == null ) {
+				throw new ConfigurationException("Query " + query + " has no outfields named " + outfields);
+			}
+			stage = new WriteStage(p, location(sconf));
+		} else if( type.equals("projects") ) {
+			String projects = require(sconf.getString("[@projects]", "Projects"));
+			stage = new ProjectsStage(conf, sconf, projects, location(sconf));
+		} else {
+			throw new ConfigurationException("Unknown postprocess stage type " + type);
+		}
+		types.add(type);
+		queries.add(query);
+		stages.add(stage);
+	}
+
+
+	/* location - the directory for a stage's location attribute, or
+	 * the working directory if it hasn't got one
+	 */
+
+	private String location(Configuration sconf) throws ConfigurationException {
+		String location = sconf.getString("[@location]");
+		if( location == null ) {
+			return conf.getString("locations.working");
+		}
+		String dir = conf.getString("locations." + location);
+		if( dir == null ) {
+			throw new ConfigurationException("No location " + location);
+		}
+		return dir;
+	}
+
+
+	/* require - checks that a stage's query exists and keeps its records */
+
+	private String require(String query) throws ConfigurationException {
+		Feed feed = feeds.get(query);
+		if( feed == null ) {
+			throw new ConfigurationException("Postprocess stage refers to unknown query " + query);
+		}
+		if( feed.isStreaming() ) {
+			throw new ConfigurationException("Query " + query + " is streamed, so it can't be post-processed");
+		}
+		used.add(query);
+		return query;
+	}
+
+
+	/* uses - whether any of the stages need the query's records */
+
+	public boolean uses(String query) {
+		return used.contains(query);
+	}
+
+
+	/* getRecords - a query's records as transformed by the stages so far */
+
+	public RecordStore getRecords(String query) {
+		RecordStore store = stores.get(query);
+		if( store == null ) {
+			store = feeds.get(query).getRecords();
+		}
+		return store;
+	}
+
+
+	/* getHierarchy - the group hierarchy of a query's records as they
+	 * are now.  It's only built once, and kept until a stage changes
+	 * that query's records.
+	 */
+
+	public GroupHierarchy getHierarchy(String query) {
+		GroupHierarchy h = hierarchies.get(query);
+		if( h == null ) {
+			h = new GroupHierarchy(getRecords(query), "Parent_Group_ID");
+			h.report();
+			hierarchies.put(query, h);
+		}
+		return h;
+	}
+
+
+	/* run - returns false if any of the feeds which the stages need
+	 * failed, or if any stage failed, in which case the later stages
+	 * aren't run.
+	 */
+
+	public boolean run() {
+		for( String query: used ) {
+			if( !feeds.get(query).isComplete() ) {
+				log.error("Feed " + query + " didn't complete, not post-processing");
+				return false;
+			}
+		}
+		for( int i = 0; i < stages.size(); i++ ) {
+			String query = queries.get(i);
+			long start = System.currentTimeMillis();
+			try {
+				RecordStore out = stages.get(i).apply(getRecords(query), this);
+				stores.put(query, out);
+				if( !types.get(i).equals("write") ) {
+					hierarchies.remove(query);
+				}
+				log.info("Stage " + types.get(i) + " on " + query + ": " + out.size()
+						+ " records in " + (System.currentTimeMillis() - start) + " ms");
+			} catch( Exception e ) {
+				log.error("Stage " + types.get(i) + " on " + query + " failed", e);
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,237 @@
+package mintIntegration;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* ProfileVerifier - fetches staff profile pages and pulls out their h1
+ * headings, which is what pp2_test_profile_urls.pl did with
+ * Web::Scraper, but on a pool of threads rather than one at a time.
+ *
+ * Requests to the same host are spaced out to at most per_host a
+ * second, however many threads there are, and every request has a
+ * connect and read timeout.  Results go in a UrlCache: a fresh entry
+ * saves the request altogether, and a stale one is sent as a
+ * conditional GET with its ETag and Last-Modified, so a page which
+ * hasn't changed costs a 304.
+ *
+ * Only definite answers are cached: 200s and 4xx.  Network errors and
+ * 5xx give no entry, so that the URL is tried again next time.
+ *
+ * TestProfileVerifier checks it against a stand-in HTTP server.
+ */
+
+public class ProfileVerifier {
+
+    private static Logger log = LoggerFactory.getLogger(ProfileVerifier.class);
+
+	private static int MAX_BODY = 1 << 20;
+
+	private static Pattern H1 = Pattern.compile("<h1[^>]*>(.*?)</h1>", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private static Pattern TAG = Pattern.compile("<[^>]*>");
+	private static Pattern SPACE = Pattern.compile("\\s+");
+	private static Pattern CHARSET = Pattern.compile("charset=\"?([-\\w]+)", Pattern.CASE_INSENSITIVE);
+
+	private int threads;
+	private long interval;
+	private int timeout;
+	private UrlCache cache;
+	private HashMap<String, Long> next_start;
+
+	private AtomicInteger n_fresh = new AtomicInteger();
+	private AtomicInteger n_not_modified = new AtomicInteger();
+	private AtomicInteger n_fetched = new AtomicInteger();
+	private AtomicInteger n_failed = new AtomicInteger();
+
+
+	/* ProfileVerifier - with up to threads requests in flight, at most
+	 * per_host a second to any one host (0 for no limit), a connect and
+	 * read timeout of timeout_ms, and the results of earlier runs in cache
+	 */
+
+	ProfileVerifier(int threads, double per_host, int timeout_ms, UrlCache cache) {
+		this.threads = threads;
+		interval = ( per_host > 0 ) ? (long)(1000 / per_host) : 0;
+		timeout = timeout_ms;
+		this.cache = cache;
+		next_start = new HashMap<String, Long>();
+	}
+
+
+	/* fetch - an entry for each URL, or null if it couldn't be fetched */
+
+	public Map<String, UrlCache.Entry> fetch(Collection<String> urls) throws InterruptedException {
+		LinkedHashSet<String> distinct = new LinkedHashSet<String>(urls);
+		HashMap<String, UrlCache.Entry> results = new HashMap<String, UrlCache.Entry>();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, distinct.size())));
+		HashMap<String, Future<UrlCache.Entry>> pending = new HashMap<String, Future<UrlCache.Entry>>();
+		try {
+			for( final String url: distinct ) {
+				UrlCache.Entry e = cache.get(url);
+				if( e != null && cache.isFresh(e) ) {
+					n_fresh.incrementAndGet();
+					results.put(url, e);
+					continue;
+				}
+				pending.put(url, executor.submit(new Callable<UrlCache.Entry>() {
+					public UrlCache.Entry call() throws InterruptedException {
+						return fetchOne(url);
+					}
+				}));
+			}
+			for( Map.Entry<String, Future<UrlCache.Entry>> p: pending.entrySet() ) {
+				try {
+					results.put(p.getKey(), p.getValue().get());
+				} catch( ExecutionException e ) {
+					log.error("Checking " + p.getKey() + " failed", e.getCause());
+					results.put(p.getKey(), null);
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		log.info(distinct.size() + " URLs: " + n_fresh + " from the cache, " + n_not_modified + " not modified, "
+				+ n_fetched + " fetched, " + n_failed + " failed");
+		return results;
+	}
+
+
+	private UrlCache.Entry fetchOne(String url) throws InterruptedException {
+		UrlCache.Entry old = cache.get(url);
+		HttpURLConnection con = null;
+		try {
+			URL u = new URL(url);
+			throttle(u.getHost().toLowerCase());
+			con = (HttpURLConnection)u.openConnection();
+			con.setConnectTimeout(timeout);
+			con.setReadTimeout(timeout);
+			con.setInstanceFollowRedirects(true);
+			if( old != null && old.status == HttpURLConnection.HTTP_OK ) {
+				if( old.etag != null ) {
+					con.setRequestProperty("If-None-Match", old.etag);
+				}
+				if( old.last_modified != null ) {
+					con.setRequestProperty("If-Modified-Since", old.last_modified);
+				}
+			}
+			int status = con.getResponseCode();
+			long now = System.currentTimeMillis();
+			if( status == HttpURLConnection.HTTP_NOT_MODIFIED && old != null ) {
+				n_not_modified.incrementAndGet();
+				UrlCache.Entry e = new UrlCache.Entry(url, now, old.status, old.etag, old.last_modified, old.headings);
+				cache.put(e);
+				return e;
+			}
+			if( status >= 500 || status == 429 ) {
+				log.warn("HTTP " + status + " for " + url);
+				n_failed.incrementAndGet();
+				return null;
+			}
+			String[] headings = new String[0];
+			if( status == HttpURLConnection.HTTP_OK ) {
+				headings = headings(read(con.getInputStream(), charset(con.getContentType())));
+			}
+			n_fetched.incrementAndGet();
+			UrlCache.Entry e = new UrlCache.Entry(url, now, status, con.getHeaderField("ETag"),
+					con.getHeaderField("Last-Modified"), headings);
+			cache.put(e);
+			return e;
+		} catch( IOException e ) {
+			log.warn("Request for " + url + " failed: " + e);
+			n_failed.incrementAndGet();
+			return null;
+		} finally {
+			if( con != null ) {
+				con.disconnect();
+			}
+		}
+	}
+
+
+	/* throttle - waits for this host's next slot, so that requests to
+	 * it start at least interval ms apart
+	 */
+
+	private void throttle(String host) throws InterruptedException {
+		if( interval == 0 ) {
+			return;
+		}
+		long wait;
+		synchronized( next_start ) {
+			long now = System.currentTimeMillis();
+			Long next = next_start.get(host);
+			long at = ( next == null || next < now ) ? now : next;
+			next_start.put(host, at + interval);
+			wait = at - now;
+		}
+		if( wait > 0 ) {
+			Thread.sleep(wait);
+		}
+	}
+
+
+	/* headings - the text of each h1, with tags taken out, the commonest
+	 * entities decoded and whitespace collapsed
+	 */
+
+	public static String[] headings(String html) {
+		ArrayList<String> h = new ArrayList<String>();
+		Matcher m = H1.matcher(html);
+		while( m.find() ) {
+			String text = TAG.matcher(m.group(1)).replaceAll(" ");
+			text = text.replace("&nbsp;", " ").replace("&#39;", "'").replace("&quot;", "\"")
+				.replace("&lt;", "<").replace("&gt;", ">").replace("&amp;", "&");
+			h.add(SPACE.matcher(text).replaceAll(" ").trim());
+		}
+		return h.toArray(new String[h.size()]);
+	}
+
+
+	private static String charset(String content_type) {
+		if( content_type != null ) {
+			Matcher m = CHARSET.matcher(content_type);
+			if( m.find() ) {
+				return m.group(1);
+			}
+		}
+		return "UTF-8";
+	}
+
+
+	private static String read(InputStream in, String charset) throws IOException {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		try {
+			byte[] buf = new byte[8192];
+			int n;
+			while( b.size() < MAX_BODY && (n = in.read(buf)) > 0 ) {
+				b.write(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		try {
+			return b.toString(charset);
+		} catch( UnsupportedEncodingException e ) {
+			return b.toString("UTF-8");
+		}
+	}
+}
@@ -0,0 +1,611 @@
+package mintIntegration;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* Projection - one of a query's <outfields> lists: a file and the
+ * fields, in order, which are written to it for each record.
+ *
+ * With delta="1" on the outfields, the projection also keeps an index
+ * (FILE.index) of unique_ID to content hash from the last run, and 
+ * writes the records added and changed since then, and the IDs of 
+ * those deleted, to FILE.added.csv, FILE.changed.csv and 
+ * FILE.deleted.csv.  The new index is kept in FILE.index.new until
+ * the whole run has worked, when commitIndex() moves it into place, so
+ * that a run which fails or is repeated is compared against the same
+ * index as before.
+ *
+ * With parts="N" the records are split between N files by a hash of
+ * their unique_ID, FILE.00.csv to FILE.NN.csv, and with compress="gzip"
+ * the files are gzipped.  Either way, FILE.manifest.csv lists each file
+ * with its number of records, size and SHA-256, and is written once all
+ * of the files have been.  Each part's records are in key order, so
+ * that a part whose records haven't changed comes out byte-for-byte the
+ * same, and if its checksum is the same as in the last manifest the old
+ * file isn't touched at all.
+ *
+ * A streamed feed can checkpoint() its projections and resume() them
+ * in a later run, but only for a single uncompressed file without
+ * delta, since the index has to see every record in the one run.
+ */
+
+public class Projection {
+
+    private static Logger log = LoggerFactory.getLogger(Projection.class);
+
+	private String name;
+	private String file;
+	private ArrayList<String> fields;
+	private int[] columns;
+	private String path;
+	private CsvWriter csv;
+	private long written;
+	private boolean deferred;
+
+	private boolean split;
+	private int n_parts;
+	private boolean gzip;
+	private CsvWriter[] parts;
+
+	private boolean delta;
+	private String key_field;
+	private DeltaIndex old_index;
+	private DeltaIndex new_index;
+	private CsvWriter added;
+	private CsvWriter changed;
+	private CsvWriter deleted;
+	private long n_added;
+	private long n_changed;
+	private long n_deleted;
+
+
+	Projection(String name, String file, List<String> fields) {
+		this.name = name;
+		this.file = file;
+		this.fields = new ArrayList<String>(fields);
+		n_parts = 1;
+	}
+
+
+	public String getName() {
+		return name;
+	}
+
+
+	public String getFile() {
+		return file;
+	}
+
+
+	public List<String> getFields() {
+		return fields;
+	}
+
+
+	public long getWritten() {
+		return written;
+	}
+
+
+	/* setDeferred - the projection is written by a PostProcess stage,
+	 * not when the feed runs
+	 */
+
+	public void setDeferred(boolean deferred) {
+		this.deferred = deferred;
+	}
+
+
+	public boolean isDeferred() {
+		return deferred;
+	}
+
+
+	/* setDelta - key_field is the header for the deleted IDs file */
+
+	public void setDelta(String key_field) {
+		this.delta = true;
+		this.key_field = key_field;
+	}
+
+
+	/* setParts - split the file n ways by key, gzipped if gzip */
+
+	public void setParts(int n, boolean gzip) {
+		this.n_parts = Math.max(1, n);
+		this.gzip = gzip;
+		this.split = n_parts > 1 || gzip;
+	}
+
+
+	/* isResumable - whether a streamed feed can checkpoint this */
+
+	public boolean isResumable() {
+		return !delta && !split;
+	}
+
+
+	/* bind - look up the column for each field in a store's layout */
+
+	public void bind(RecordStore layout) {
+		columns = new int[fields.size()];
+		for( int i = 0; i < columns.length; i++ ) {
+			columns[i] = layout.column(fields.get(i));
+		}
+	}
+
+
+	/* open - start the file and write the header */
+
+	public boolean open(String dir) {
+		path = dir + '/' + file;
+
+		log.debug("Writing CSV to " + path);
+
+		written = 0;
+		csv = null;
+		parts = null;
+		added = null;
+		changed = null;
+		deleted = null;
+
+		try {
+			if( split ) {
+				parts = new CsvWriter[n_parts];
+				for( int i = 0; i < n_parts; i++ ) {
+					parts[i] = header(new CsvWriter(partFile(i), gzip, true));
+				}
+			} else {
+				csv = openFile(new File(path));
+			}
+			if( delta ) {
+				File pending = pendingIndexFile(path);
+				if( pending.exists() && !pending.delete() ) {
+					log.warn("Couldn't delete " + pending);
+				}
+				old_index = DeltaIndex.load(indexFile(path));
+				new_index = new DeltaIndex();
+				n_added = 0;
+				n_changed = 0;
+				n_deleted = 0;
+				added = openFile(deltaFile(path, "added"));
+				changed = openFile(deltaFile(path, "changed"));
+				deleted = new CsvWriter(deltaFile(path, "deleted"));
+				deleted.field(key_field);
+				deleted.endRow();
+			}
+		} catch( IOException e ) {
+			log.error("Couldn't open " + path, e);
+			abortAll();
+			return false;
+		}
+		return true;
+	}
+
+
+	/* resume - carry on with the file left by an earlier run, from the
+	 * offset its last checkpoint returned.  The header is already there.
+	 */
+
+	public boolean resume(String dir, long offset) {
+		path = dir + '/' + file;
+		if( !isResumable() ) {
+			log.error("Can't resume " + path + ", it has a delta or is split");
+			return false;
+		}
+		written = 0;
+		parts = null;
+		try {
+			csv = new CsvWriter(new File(path), offset);
+		} catch( IOException e ) {
+			log.warn("Couldn't resume " + path + ": " + e.getMessage());
+			csv = null;
+			return false;
+		}
+		log.debug("Resuming CSV " + path + " at byte " + offset);
+		return true;
+	}
+
+
+	/* checkpoint - the length of the file so far, once it's on disk */
+
+	public long checkpoint() throws IOException {
+		return csv.checkpoint();
+	}
+
+
+	/* suspend - close the file, keeping what's been written for resume() */
+
+	public void suspend() {
+		if( csv != null ) {
+			csv.suspend();
+		}
+	}
+
+
+	private CsvWriter openFile(File f) throws IOException {
+		return header(new CsvWriter(f));
+	}
+
+
+	private CsvWriter header(CsvWriter w) throws IOException {
+		for( int i = 0; i < fields.size(); i++ ) {
+			w.field(fields.get(i));
+		}
+		w.endRow();
+		return w;
+	}
+
+
+	/* partFile - FILE.csv.gz if it's only compressed, otherwise the
+	 * part number goes before the .csv, padded so that they sort
+	 */
+
+	private File partFile(int i) {
+		if( n_parts == 1 ) {
+			return new File(path + ".gz");
+		}
+		String n = Integer.toString(i);
+		int width = Math.max(2, Integer.toString(n_parts - 1).length());
+		while( n.length() < width ) {
+			n = "0" + n;
+		}
+		return new File(base(path) + "." + n + ".csv" + ( gzip ? ".gz" : "" ));
+	}
+
+
+	/* part - which part a key goes in.  The hash is the delta index's, so
+	 * it's the same on every run.
+	 */
+
+	private int part(String key) {
+		long h = DeltaIndex.hash(DeltaIndex.start(), key);
+		return (int)((h >>> 1) % n_parts);
+	}
+
+
+	private static File indexFile(String path) {
+		return new File(path + ".index");
+	}
+
+
+	private static File pendingIndexFile(String path) {
+		return new File(path + ".index.new");
+	}
+
+
+	private static File deltaFile(String path, String kind) {
+		return new File(base(path) + "." + kind + ".csv");
+	}
+
+
+	private static String base(String path) {
+		if( path.toLowerCase().endsWith(".csv") ) {
+			return path.substring(0, path.length() - 4);
+		}
+		return path;
+	}
+
+
+	public void write(RecordStore store, int row) throws IOException {
+		if( parts != null ) {
+			writeRow(parts[part(store.key(row))], store, row);
+		} else {
+			writeRow(csv, store, row);
+		}
+		written++;
+		if( delta ) {
+			writeDelta(store, row);
+		}
+	}
+
+
+	private void writeRow(CsvWriter out, RecordStore store, int row) throws IOException {
+		for( int i = 0; i < columns.length; i++ ) {
+			out.field(store.get(row, columns[i]));
+		}
+		out.endRow();
+	}
+
+
+	/* writeAll - every record in the store.  If the file is split, each
+	 * part's records are sorted by key and the parts are written on
+	 * their own threads.
+	 */
+
+	public void writeAll(final RecordStore store) throws IOException {
+		if( parts == null ) {
+			for( int row = 0; row < store.size(); row++ ) {
+				write(store, row);
+			}
+			return;
+		}
+		int n = store.size();
+		int[] part_of = new int[n];
+		int[] counts = new int[n_parts];
+		for( int row = 0; row < n; row++ ) {
+			part_of[row] = part(store.key(row));
+			counts[part_of[row]]++;
+		}
+		final String[][] keys = new String[n_parts][];
+		for( int p = 0; p < n_parts; p++ ) {
+			keys[p] = new String[counts[p]];
+			counts[p] = 0;
+		}
+		for( int row = 0; row < n; row++ ) {
+			int p = part_of[row];
+			keys[p][counts[p]++] = store.key(row);
+		}
+		part_of = null;
+		if( delta ) {
+			for( int row = 0; row < n; row++ ) {
+				writeDelta(store, row);
+			}
+		}
+
+		int threads = Math.min(n_parts, Runtime.getRuntime().availableProcessors());
+		if( threads <= 1 ) {
+			for( int p = 0; p < n_parts; p++ ) {
+				writePart(store, p, keys[p]);
+			}
+		} else {
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			ArrayList<Future<Object>> results = new ArrayList<Future<Object>>();
+			for( int p = 0; p < n_parts; p++ ) {
+				final int part = p;
+				results.add(executor.submit(new Callable<Object>() {
+					public Object call() throws IOException {
+						writePart(store, part, keys[part]);
+						return null;
+					}
+				}));
+			}
+			try {
+				for( Future<Object> f: results ) {
+					f.get();
+				}
+			} catch( ExecutionException e ) {
+				if( e.getCause() instanceof IOException ) {
+					throw (IOException)e.getCause();
+				}
+				throw new IOException("Writing " + path + " failed", e.getCause());
+			} catch( InterruptedException e ) {
+				throw new IOException("Interrupted writing " + path);
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+		written += n;
+	}
+
+
+	private void writePart(RecordStore store, int p, String[] keys) throws IOException {
+		Arrays.sort(keys);
+		CsvWriter out = parts[p];
+		for( int i = 0; i < keys.length; i++ ) {
+			writeRow(out, store, store.find(keys[i]));
+		}
+	}
+
+
+	/* writeDelta - compare the record's hash against last run's */
+
+	private void writeDelta(RecordStore store, int row) throws IOException {
+		String key = store.key(row);
+		long h = DeltaIndex.start();
+		for( int i = 0; i < columns.length; i++ ) {
+			h = DeltaIndex.hash(h, store.get(row, columns[i]));
+		}
+		new_index.add(key, h);
+		CsvWriter out = null;
+		int old = old_index.find(key);
+		if( old < 0 ) {
+			out = added;
+			n_added++;
+		} else {
+			old_index.markSeen(old);
+			if( old_index.hash(old) != h ) {
+				out = changed;
+				n_changed++;
+			}
+		}
+		if( out != null ) {
+			for( int i = 0; i < columns.length; i++ ) {
+				out.field(store.get(row, columns[i]));
+			}
+			out.endRow();
+		}
+	}
+
+
+	/* close - if ok, moves the finished file into place, otherwise
+	 * throws it away
+	 */
+
+	public boolean close(boolean ok) {
+		if( csv == null && parts == null ) {
+			return false;
+		}
+		if( !ok ) {
+			log.error("Discarding incomplete CSV " + path);
+			abortAll();
+			return false;
+		}
+		try {
+			if( delta ) {
+				for( int i = 0; i < old_index.size(); i++ ) {
+					if( !old_index.isSeen(i) ) {
+						deleted.field(old_index.key(i));
+						deleted.endRow();
+						n_deleted++;
+					}
+				}
+				added.commit();
+				changed.commit();
+				deleted.commit();
+			}
+			if( parts != null ) {
+				commitParts();
+			} else {
+				csv.commit();
+				removeParts();
+			}
+			if( delta ) {
+				new_index.save(pendingIndexFile(path));
+				log.info(file + ": " + n_added + " added, " + n_changed 
+						+ " changed, " + n_deleted + " deleted");
+			}
+		} catch( IOException e ) {
+			log.error("Couldn't finish writing " + path, e);
+			abortAll();
+			return false;
+		} finally {
+			old_index = null;
+			new_index = null;
+		}
+		log.debug("Wrote " + written + " records to " + path);
+		return true;
+	}
+
+
+	/* commitIndex - moves the delta index which the last close() left
+	 * into place.  Only call this once the whole run has worked.  There
+	 * mightn't be one if this run skipped the feed, or if the last run
+	 * failed after it was written, in which case it's still the one that
+	 * goes with the delta files.
+	 */
+
+	public void commitIndex(String dir) throws IOException {
+		if( !delta ) {
+			return;
+		}
+		String p = dir + '/' + file;
+		File pending = pendingIndexFile(p);
+		if( pending.exists() ) {
+			FileUtil.replace(pending, indexFile(p));
+		}
+	}
+
+
+	/* commitParts - moves the parts into place, apart from any which are
+	 * the same as last time, and then writes the manifest.  Any files in
+	 * the last manifest which aren't in this one, from when there were
+	 * more parts, are deleted, as is the single file from when it wasn't
+	 * split.
+	 */
+
+	private void commitParts() throws IOException {
+		File manifest = new File(base(path) + ".manifest.csv");
+		HashMap<String, String> previous = readManifest(manifest);
+		CsvWriter m = new CsvWriter(manifest);
+		m.writeRow(new String[] { "file", "records", "bytes", "sha256" });
+		int unchanged = 0;
+		for( CsvWriter w: parts ) {
+			String name = w.getTarget().getName();
+			if( !w.commit(previous.remove(name)) ) {
+				unchanged++;
+			}
+			m.writeRow(new String[] { name, Long.toString(w.getRows() - 1), 
+					Long.toString(w.getBytes()), w.getChecksum() });
+		}
+		m.commit();
+		for( String name: previous.keySet() ) {
+			File old = new File(manifest.getParentFile(), name);
+			if( old.exists() && !old.delete() ) {
+				log.warn("Couldn't delete old part " + old);
+			}
+		}
+		File single = new File(path);
+		if( single.exists() && !single.delete() ) {
+			log.warn("Couldn't delete old file " + single);
+		}
+		log.info(file + ": " + written + " records in " + parts.length + " files, " 
+				+ unchanged + " unchanged");
+	}
+
+
+	/* removeParts - the file isn't split any more, so the parts and the
+	 * manifest from when it was are deleted, or they'd be harvested too
+	 */
+
+	private void removeParts() {
+		File manifest = new File(base(path) + ".manifest.csv");
+		if( !manifest.exists() ) {
+			return;
+		}
+		for( String name: readManifest(manifest).keySet() ) {
+			File old = new File(manifest.getParentFile(), name);
+			if( old.exists() && !old.delete() ) {
+				log.warn("Couldn't delete old part " + old);
+			}
+		}
+		if( !manifest.delete() ) {
+			log.warn("Couldn't delete old manifest " + manifest);
+		}
+	}
+
+
+	/* readManifest - file name to checksum from the last manifest */
+
+	private static HashMap<String, String> readManifest(File manifest) {
+		HashMap<String, String> sums = new HashMap<String, String>();
+		if( !manifest.exists() ) {
+			return sums;
+		}
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+			try {
+				String line = in.readLine();
+				while( (line = in.readLine()) != null ) {
+					String[] f = line.split(",");
+					if( f.length == 4 ) {
+						// CsvWriter quotes a name which doesn't start with a letter or digit
+						String name = f[0];
+						if( name.length() > 1 && name.startsWith("\"") && name.endsWith("\"") ) {
+							name = name.substring(1, name.length() - 1).replace("\"\"", "\"");
+						}
+						sums.put(name, f[3]);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch( IOException e ) {
+			log.warn("Couldn't read " + manifest + ", rewriting all of the files", e);
+			sums.clear();
+		}
+		return sums;
+	}
+
+
+	private void abortAll() {
+		CsvWriter[] writers = { csv, added, changed, deleted };
+		for( CsvWriter w: writers ) {
+			if( w != null ) {
+				w.abort();
+			}
+		}
+		if( parts != null ) {
+			for( CsvWriter w: parts ) {
+				if( w != null ) {
+					w.abort();
+				}
+			}
+		}
+	}
+}
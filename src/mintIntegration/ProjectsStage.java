@@ -0,0 +1,430 @@
+package mintIntegration;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.regex.Pattern;
+
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* ProjectsStage - projects.pl: writes Activities.csv from the projects
+ * and filters the people down to the first-named investigators on
+ * those projects.
+ *
+ * <stage type="projects" query="People" projects="Projects" cutoff="2009"
+ *   activities="Activities.csv" location="harvest" encrypted="1"
+ *   id_prefix="http://hdl.handle.net/11057/id"/>
+ *
+ * The projects query has a row for each investigator on each project,
+ * with the ResearchMaster columns as fields (CCODE, SPROTITLE, MDESC,
+ * MKEYWORD, SFOLIO, DAPPLIC, DSTART, CPERSON_NAME, CPERSON_CODE,
+ * NORDER), so its unique_ID has to be something which is different
+ * for every row, such as CCODE + '-' + CPERSON_CODE.
+ *
+ * As in the Perl, rows starting before the cutoff year are dropped,
+ * then any project without an SFOLIO, or which shares its SFOLIO with
+ * another project, is left out.  The investigators are listed by
+ * NORDER, and the one with NORDER 1, if their ID is six digits, is
+ * kept in the people.  encrypted="1" matches them against people who
+ * have been through encrypt_ids.  id_prefix is put on the front of the
+ * kept people's ID field.
+ *
+ * Each project's rows are brought together and sorted by NORDER with a
+ * hash join on CCODE if there are up to hash_max rows, or otherwise by
+ * sorting the row numbers by CCODE and NORDER and merging along them,
+ * which needs two int arrays and nothing per project.  Either way the
+ * activities come out in CCODE order, so the file is the same from one
+ * run to the next.
+ */
+
+public class ProjectsStage implements Stage {
+
+    private static Logger log = LoggerFactory.getLogger(ProjectsStage.class);
+
+	private static String[] HEADERS = {
+		"ID", "Submit Year", "Start Year", "Title", "Description",
+		"Institution", "Investigators", "Discipline"
+	};
+
+	private static Pattern SID = Pattern.compile("^\\d{6}$");
+
+	private static String DEFAULT_INSTITUTION = "University of Technology, Sydney";
+
+	private String projects;
+	private int cutoff;
+	private int hash_max;
+	private String institution;
+	private File activities;
+	private String id_prefix;
+	private Skip32 cipher;
+
+	/* the projects' columns, and each kept row's NORDER */
+	private int c_code, c_title, c_desc, c_keyword, c_folio, c_applic, c_start, c_name, c_sid, c_order;
+	private double[] norder;
+
+
+	ProjectsStage(Configuration conf, Configuration sconf, String projects, String dir) {
+		this.projects = projects;
+		cutoff = sconf.getInt("[@cutoff]", 2009);
+		hash_max = sconf.getInt("[@hash_max]", 1000000);
+		institution = sconf.getString("[@institution]", DEFAULT_INSTITUTION);
+		activities = new File(dir, sconf.getString("[@activities]", "Activities.csv"));
+		id_prefix = sconf.getString("[@id_prefix]");
+		if( sconf.getString("[@encrypted]") != null ) {
+			cipher = Skip32.fromHex(conf.getString("staffIDs.cryptKey"));
+		}
+	}
+
+
+	public RecordStore apply(RecordStore people, PostProcess pp) throws Exception {
+		RecordStore rows = pp.getRecords(projects);
+		c_code = column(rows, "CCODE");
+		c_title = column(rows, "SPROTITLE");
+		c_desc = column(rows, "MDESC");
+		c_keyword = column(rows, "MKEYWORD");
+		c_folio = column(rows, "SFOLIO");
+		c_applic = column(rows, "DAPPLIC");
+		c_start = column(rows, "DSTART");
+		c_name = column(rows, "CPERSON_NAME");
+		c_sid = column(rows, "CPERSON_CODE");
+		c_order = column(rows, "NORDER");
+
+		int n = rows.size();
+		int[] kept = new int[n];
+		int m = 0;
+		norder = new double[n];
+		for( int r = 0; r < n; r++ ) {
+			String code = rows.get(r, c_code);
+			if( code == null || code.length() == 0 || year(rows.get(r, c_start)) < cutoff ) {
+				continue;
+			}
+			norder[r] = number(rows.get(r, c_order));
+			kept[m++] = r;
+		}
+		log.info(m + " of " + n + " project rows start in or after " + cutoff);
+
+		// order is the kept rows a project at a time, with project p's
+		// rows from bounds[p] to bounds[p + 1]
+		int[] order = new int[m];
+		int[] bounds;
+		if( m <= hash_max ) {
+			bounds = hashGroup(rows, kept, m, order);
+		} else {
+			bounds = sortGroup(rows, kept, m, order);
+		}
+		int n_projects = bounds.length - 1;
+
+		// the SFOLIO rule
+		HashMap<String, Integer> folios = new HashMap<String, Integer>();
+		for( int p = 0; p < n_projects; p++ ) {
+			String folio = rows.get(order[bounds[p]], c_folio);
+			if( folio != null && folio.length() > 0 ) {
+				Integer c = folios.get(folio);
+				folios.put(folio, ( c == null ) ? 1 : c + 1);
+			}
+		}
+
+		HashSet<String> investigators = new HashSet<String>();
+		int n_shared = 0;
+		int n_no_folio = 0;
+		CsvWriter out = new CsvWriter(activities);
+		boolean ok = false;
+		try {
+			out.writeRow(HEADERS);
+			StringBuilder names = new StringBuilder();
+			for( int p = 0; p < n_projects; p++ ) {
+				int first = order[bounds[p]];
+				String folio = rows.get(first, c_folio);
+				if( folio == null || folio.length() == 0 ) {
+					n_no_folio++;
+					continue;
+				}
+				if( folios.get(folio) > 1 ) {
+					log.debug("Removing " + rows.get(first, c_code) + ": SFOLIO " + folio + " is shared");
+					n_shared++;
+					continue;
+				}
+				names.setLength(0);
+				boolean pi = false;
+				for( int i = bounds[p]; i < bounds[p + 1]; i++ ) {
+					int r = order[i];
+					String name = rows.get(r, c_name);
+					if( name != null && name.length() > 0 ) {
+						if( names.length() > 0 ) {
+							names.append("; ");
+						}
+						names.append(name);
+					}
+					if( !pi && norder[r] == 1 ) {
+						pi = true;
+						String sid = rows.get(r, c_sid);
+						if( sid != null && SID.matcher(sid).matches() ) {
+							investigators.add(sid);
+						}
+					}
+				}
+				out.field(folio);
+				out.field(prefix(rows.get(first, c_applic)));
+				out.field(prefix(rows.get(first, c_start)));
+				out.field(rows.get(first, c_title));
+				out.field(rows.get(first, c_desc));
+				out.field(institution);
+				out.field(names.toString());
+				out.field(rows.get(first, c_keyword));
+				out.endRow();
+			}
+			out.commit();
+			ok = true;
+		} finally {
+			if( !ok ) {
+				out.abort();
+			}
+		}
+		log.info("Removed " + n_shared + " projects which share an SFOLIO and " + n_no_folio + " with none");
+		log.info("Wrote " + (out.getRows() - 1) + " projects to " + activities);
+		log.info("Got " + investigators.size() + " first investigators in projects");
+
+		return filterPeople(people, investigators);
+	}
+
+
+	/* hashGroup - projects in a HashMap by CCODE, each one's rows in a
+	 * linked list through next[], then sorted by CCODE and NORDER
+	 */
+
+	private int[] hashGroup(RecordStore rows, int[] kept, int m, int[] order) {
+		HashMap<String, Integer> index = new HashMap<String, Integer>();
+		int[] next = new int[m];
+		int[] head = new int[16];
+		int[] tail = new int[16];
+		int[] size = new int[16];
+		String[] codes = new String[16];
+		int n_projects = 0;
+		for( int i = 0; i < m; i++ ) {
+			String code = rows.get(kept[i], c_code);
+			Integer p = index.get(code);
+			next[i] = -1;
+			if( p == null ) {
+				if( n_projects == head.length ) {
+					head = Arrays.copyOf(head, n_projects * 2);
+					tail = Arrays.copyOf(tail, n_projects * 2);
+					size = Arrays.copyOf(size, n_projects * 2);
+					codes = Arrays.copyOf(codes, n_projects * 2);
+				}
+				index.put(code, n_projects);
+				head[n_projects] = tail[n_projects] = i;
+				size[n_projects] = 1;
+				codes[n_projects] = code;
+				n_projects++;
+			} else {
+				next[tail[p]] = i;
+				tail[p] = i;
+				size[p]++;
+			}
+		}
+		final String[] by_code = codes;
+		int[] projects = new int[n_projects];
+		for( int p = 0; p < n_projects; p++ ) {
+			projects[p] = p;
+		}
+		sort(projects, n_projects, new RowOrder() {
+			public int compare(int a, int b) {
+				return by_code[a].compareTo(by_code[b]);
+			}
+		});
+		int[] bounds = new int[n_projects + 1];
+		int k = 0;
+		for( int j = 0; j < n_projects; j++ ) {
+			int p = projects[j];
+			bounds[j] = k;
+			for( int i = head[p]; i >= 0; i = next[i] ) {
+				order[k++] = kept[i];
+			}
+			sort(order, bounds[j], k, byNorder());
+		}
+		bounds[n_projects] = k;
+		return bounds;
+	}
+
+
+	/* sortGroup - all of the rows sorted by CCODE and NORDER, with the
+	 * projects' bounds wherever the CCODE changes
+	 */
+
+	private int[] sortGroup(final RecordStore rows, int[] kept, int m, int[] order) {
+		System.arraycopy(kept, 0, order, 0, m);
+		final RowOrder by_norder = byNorder();
+		sort(order, m, new RowOrder() {
+			public int compare(int a, int b) {
+				int c = rows.get(a, c_code).compareTo(rows.get(b, c_code));
+				return ( c != 0 ) ? c : by_norder.compare(a, b);
+			}
+		});
+		int[] bounds = new int[16];
+		int n_projects = 0;
+		for( int i = 0; i < m; i++ ) {
+			if( i == 0 || !rows.get(order[i], c_code).equals(rows.get(order[i - 1], c_code)) ) {
+				if( n_projects + 1 >= bounds.length ) {
+					bounds = Arrays.copyOf(bounds, bounds.length * 2);
+				}
+				bounds[n_projects++] = i;
+			}
+		}
+		bounds[n_projects] = m;
+		return Arrays.copyOf(bounds, n_projects + 1);
+	}
+
+
+	/* filterPeople - the people who are first investigators, in the
+	 * order they were in
+	 */
+
+	private RecordStore filterPeople(RecordStore people, HashSet<String> sids) throws Exception {
+		HashSet<String> keys = sids;
+		if( cipher != null ) {
+			int[] ids = new int[sids.size()];
+			int i = 0;
+			for( String sid: sids ) {
+				ids[i++] = Integer.parseInt(sid);
+			}
+			cipher.encrypt(ids, ids);
+			keys = new HashSet<String>();
+			for( i = 0; i < ids.length; i++ ) {
+				keys.add(Skip32.toHex(ids[i]));
+			}
+		}
+		int[] selected = new int[people.size()];
+		int n = 0;
+		for( int r = 0; r < people.size(); r++ ) {
+			if( keys.contains(people.key(r)) ) {
+				selected[n++] = r;
+			}
+		}
+		RecordStore out = people.select(selected, n);
+		if( id_prefix != null ) {
+			int id_col = column(out, "ID");
+			for( int r = 0; r < out.size(); r++ ) {
+				String id = out.get(r, id_col);
+				out.set(r, id_col, id_prefix + ( id == null ? "" : id ));
+			}
+		}
+		log.info("Got " + n + " of " + people.size() + " people in projects");
+		return out;
+	}
+
+
+	private RowOrder byNorder() {
+		return new RowOrder() {
+			public int compare(int a, int b) {
+				if( norder[a] != norder[b] ) {
+					return ( norder[a] < norder[b] ) ? -1 : 1;
+				}
+				return ( a < b ) ? -1 : ( a == b ? 0 : 1 );
+			}
+		};
+	}
+
+
+	interface RowOrder {
+		int compare(int a, int b);
+	}
+
+
+	private static void sort(int[] a, int n, RowOrder cmp) {
+		sort(a, 0, n, cmp);
+	}
+
+
+	/* sort - a stable merge sort of a[from..to), with an insertion sort
+	 * for short runs, which is all most projects need
+	 */
+
+	private static void sort(int[] a, int from, int to, RowOrder cmp) {
+		int n = to - from;
+		if( n < 2 ) {
+			return;
+		}
+		if( n <= 16 ) {
+			for( int i = from + 1; i < to; i++ ) {
+				int v = a[i];
+				int j = i - 1;
+				while( j >= from && cmp.compare(a[j], v) > 0 ) {
+					a[j + 1] = a[j];
+					j--;
+				}
+				a[j + 1] = v;
+			}
+			return;
+		}
+		int[] src = Arrays.copyOfRange(a, from, to);
+		int[] dst = new int[n];
+		for( int width = 1; width < n; width *= 2 ) {
+			for( int lo = 0; lo < n; lo += 2 * width ) {
+				int mid = Math.min(lo + width, n);
+				int hi = Math.min(lo + 2 * width, n);
+				int i = lo, j = mid, k = lo;
+				while( i < mid && j < hi ) {
+					dst[k++] = ( cmp.compare(src[j], src[i]) < 0 ) ? src[j++] : src[i++];
+				}
+				while( i < mid ) {
+					dst[k++] = src[i++];
+				}
+				while( j < hi ) {
+					dst[k++] = src[j++];
+				}
+			}
+			int[] t = src;
+			src = dst;
+			dst = t;
+		}
+		System.arraycopy(src, 0, a, from, n);
+	}
+
+
+	/* year - the leading four digits of a date, or 0, as Perl's
+	 * substr($date, 0, 4) < $CUTOFF_YEAR would treat it
+	 */
+
+	private static int year(String date) {
+		if( date == null || date.length() < 4 ) {
+			return 0;
+		}
+		try {
+			return Integer.parseInt(date.substring(0, 4));
+		} catch( NumberFormatException e ) {
+			return 0;
+		}
+	}
+
+
+	private static String prefix(String date) {
+		return ( date == null || date.length() <= 4 ) ? date : date.substring(0, 4);
+	}
+
+
+	/* number - NORDER as Perl's <=> sees it: non-numbers are 0 */
+
+	private static double number(String s) {
+		if( s == null ) {
+			return 0;
+		}
+		try {
+			return Double.parseDouble(s.trim());
+		} catch( NumberFormatException e ) {
+			return 0;
+		}
+	}
+
+
+	private int column(RecordStore store, String name) throws Exception {
+		int col = store.column(name);
+		if( col < 0 ) {
+			throw new Exception("Projects stage: no field " + name);
+		}
+		return col;
+	}
+}
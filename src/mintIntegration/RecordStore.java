@@ -0,0 +1,262 @@
+package mintIntegration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/* RecordStore - a compact, column-oriented store for a feed's records.
+ *
+ * Each field is a column, and each record a row number, so a record
+ * costs one slot per field rather than a HashMap with an entry object
+ * per field.  Columns with only a few distinct values (FOR codes,
+ * faculty and AOU IDs, titles and so on) can be dictionary-encoded, in
+ * which case each row holds an int code and every distinct value is
+ * only stored once.
+ *
+ * A null value means that the field hasn't been set for that record,
+ * which is what the old per-record maps did with containsKey.
+ *
+ * Rows are kept in the order they were added.  Not thread-safe:
+ * partitions each fill their own store and are merged with putAll.
+ */
+
+public class RecordStore {
+
+	private static int INITIAL_CAPACITY = 1024;
+
+	private String[] fields;
+	private HashMap<String, Integer> columns;
+
+	/* Each column is either a String[] or, if dictionary-encoded, an
+	 * int[] of codes into dicts[col].  Code 0 is null. */
+	private String[][] values;
+	private int[][] codes;
+	private Dictionary[] dicts;
+
+	private String[] keys;
+	private HashMap<String, Integer> index;
+	private int size;
+	private int capacity;
+
+
+	/* RecordStore - an empty store with a column for each of fields,
+	 * which is dictionary-encoded if its flag in dictionary is set.
+	 * dictionary can be null for none.
+	 */
+
+	RecordStore(List<String> fields, boolean[] dictionary) {
+		int n = fields.size();
+		this.fields = fields.toArray(new String[n]);
+		columns = new HashMap<String, Integer>(n * 2);
+		for( int i = 0; i < n; i++ ) {
+			columns.put(this.fields[i], Integer.valueOf(i));
+		}
+		values = new String[n][];
+		codes = new int[n][];
+		dicts = new Dictionary[n];
+		capacity = INITIAL_CAPACITY;
+		for( int i = 0; i < n; i++ ) {
+			if( dictionary != null && dictionary[i] ) {
+				dicts[i] = new Dictionary();
+				codes[i] = new int[capacity];
+			} else {
+				values[i] = new String[capacity];
+			}
+		}
+		keys = new String[capacity];
+		index = new HashMap<String, Integer>();
+		size = 0;
+	}
+
+
+	/* emptyCopy - a new, empty store with the same layout */
+
+	public RecordStore emptyCopy() {
+		boolean[] dictionary = new boolean[fields.length];
+		for( int i = 0; i < fields.length; i++ ) {
+			dictionary[i] = ( dicts[i] != null );
+		}
+		return new RecordStore(Arrays.asList(fields), dictionary);
+	}
+
+
+	public int size() {
+		return size;
+	}
+
+
+	public int width() {
+		return fields.length;
+	}
+
+
+	public String field(int col) {
+		return fields[col];
+	}
+
+
+	/* column - the index of a field, or -1 if there isn't one */
+
+	public int column(String field) {
+		Integer c = columns.get(field);
+		if( c == null ) {
+			return -1;
+		}
+		return c.intValue();
+	}
+
+
+	/* find - the row for a key, or -1 */
+
+	public int find(String key) {
+		Integer r = index.get(key);
+		if( r == null ) {
+			return -1;
+		}
+		return r.intValue();
+	}
+
+
+	public boolean containsKey(String key) {
+		return index.containsKey(key);
+	}
+
+
+	public String key(int row) {
+		return keys[row];
+	}
+
+
+	/* add - a new, empty row for key.  Returns the row number. */
+
+	public int add(String key) {
+		if( size == capacity ) {
+			grow();
+		}
+		int row = size++;
+		keys[row] = key;
+		index.put(key, Integer.valueOf(row));
+		return row;
+	}
+
+
+	public String get(int row, int col) {
+		if( col < 0 ) {
+			return null;
+		}
+		if( dicts[col] != null ) {
+			return dicts[col].decode(codes[col][row]);
+		}
+		return values[col][row];
+	}
+
+
+	public void set(int row, int col, String value) {
+		if( dicts[col] != null ) {
+			codes[col][row] = dicts[col].encode(value);
+		} else {
+			values[col][row] = value;
+		}
+	}
+
+
+	/* putAll - copy every row of another store with the same layout */
+
+	public void putAll(RecordStore other) {
+		for( int r = 0; r < other.size; r++ ) {
+			int row = add(other.keys[r]);
+			for( int c = 0; c < fields.length; c++ ) {
+				set(row, c, other.get(r, c));
+			}
+		}
+	}
+
+
+	/* select - a new store with the same layout, holding the given
+	 * rows in the given order.  This is how records are dropped or
+	 * reordered.
+	 */
+
+	public RecordStore select(int[] rows, int n) {
+		RecordStore copy = emptyCopy();
+		for( int i = 0; i < n; i++ ) {
+			int row = copy.add(keys[rows[i]]);
+			for( int c = 0; c < fields.length; c++ ) {
+				copy.set(row, c, get(rows[i], c));
+			}
+		}
+		return copy;
+	}
+
+
+	/* clear - drop all rows but keep the allocated space, so that a
+	 * store can be reused for streaming one record at a time.  The
+	 * dictionaries are emptied too, as nothing refers to their codes any
+	 * more, or a streamed feed would keep every distinct value it had
+	 * ever seen.
+	 */
+
+	public void clear() {
+		for( int c = 0; c < fields.length; c++ ) {
+			if( dicts[c] != null ) {
+				Arrays.fill(codes[c], 0, size, 0);
+				dicts[c].clear();
+			} else {
+				Arrays.fill(values[c], 0, size, null);
+			}
+		}
+		Arrays.fill(keys, 0, size, null);
+		index.clear();
+		size = 0;
+	}
+
+
+	private void grow() {
+		capacity = capacity * 2;
+		for( int c = 0; c < fields.length; c++ ) {
+			if( dicts[c] != null ) {
+				codes[c] = Arrays.copyOf(codes[c], capacity);
+			} else {
+				values[c] = Arrays.copyOf(values[c], capacity);
+			}
+		}
+		keys = Arrays.copyOf(keys, capacity);
+	}
+
+
+	/* Dictionary - maps each distinct value in a column to an int code */
+
+	private static class Dictionary {
+
+		private HashMap<String, Integer> codes = new HashMap<String, Integer>();
+		private ArrayList<String> values = new ArrayList<String>();
+
+		Dictionary() {
+			values.add(null);
+		}
+
+		int encode(String value) {
+			if( value == null ) {
+				return 0;
+			}
+			Integer code = codes.get(value);
+			if( code == null ) {
+				code = Integer.valueOf(values.size());
+				values.add(value);
+				codes.put(value, code);
+			}
+			return code.intValue();
+		}
+
+		String decode(int code) {
+			return values.get(code);
+		}
+
+		void clear() {
+			codes.clear();
+			values.clear();
+			values.add(null);
+		}
+	}
+}
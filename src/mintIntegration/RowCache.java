@@ -0,0 +1,224 @@
+package mintIntegration;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* RowCache - saves the raw rows of a query to a local file so that they
+ * can be replayed on later runs without going to the database.  This is
+ * meant for development and for re-running the post-processing, and is
+ * switched on per query with cache_ttl="SECONDS".
+ *
+ * Each query is cached in its own file, named by a hash of the SQL,
+ * its parameters and the database URL.  The file starts with a header
+ * (magic number, version, time created, number of columns) followed
+ * by the rows, each value being an int byte length (-1 for null) and
+ * the UTF-8 bytes.  Files are written to a temp file and renamed when
+ * the query has finished, and are memory-mapped to replay them.  A
+ * mapping can't be more than 2 GB, so a query whose rows come to more
+ * than that isn't cached.
+ */
+
+public class RowCache {
+
+    private static Logger log = LoggerFactory.getLogger(RowCache.class);
+
+	private static int MAGIC = 0x4D494E54;
+	private static int VERSION = 1;
+	private static int HEADER = 20;
+
+	private File dir;
+	private long ttl;
+
+
+	/* RowCache - keeps its files in dir, each good for ttl_sec seconds */
+
+	RowCache(File dir, long ttl_sec) {
+		this.dir = dir;
+		this.ttl = ttl_sec * 1000;
+	}
+
+
+	/* fileFor - the cache file for a query against a database */
+
+	public File fileFor(String target, String query, String params) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			md.update((target + "\n" + query + "\n" + params).getBytes("UTF-8"));
+			byte[] hash = md.digest();
+			StringBuilder b = new StringBuilder("rows-");
+			for( int i = 0; i < hash.length; i++ ) {
+				b.append(Character.forDigit((hash[i] >> 4) & 0xF, 16));
+				b.append(Character.forDigit(hash[i] & 0xF, 16));
+			}
+			b.append(".cache");
+			return new File(dir, b.toString());
+		} catch( Exception e ) {
+			throw new RuntimeException("Couldn't hash query", e);
+		}
+	}
+
+
+	/* isValid - the file exists, is a cache file which can be mapped
+	 * and hasn't expired
+	 */
+
+	public boolean isValid(File file) {
+		if( !file.exists() || file.length() < HEADER || file.length() > Integer.MAX_VALUE ) {
+			return false;
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				if( raf.readInt() != MAGIC || raf.readInt() != VERSION ) {
+					return false;
+				}
+				long created = raf.readLong();
+				return System.currentTimeMillis() - created < ttl;
+			} finally {
+				raf.close();
+			}
+		} catch( IOException e ) {
+			log.warn("Couldn't read cache file " + file, e);
+			return false;
+		}
+	}
+
+
+	public Writer openWriter(File file, int cols) throws IOException {
+		if( !dir.exists() && !dir.mkdirs() ) {
+			throw new IOException("Couldn't create cache dir " + dir);
+		}
+		return new Writer(file, cols);
+	}
+
+
+	public Reader openReader(File file) throws IOException {
+		return new Reader(file);
+	}
+
+
+	public static class Writer {
+
+		private File file;
+		private File temp;
+		private DataOutputStream out;
+		private int cols;
+		private long size;
+		private boolean too_big;
+
+		Writer(File file, int cols) throws IOException {
+			this.file = file;
+			this.cols = cols;
+			temp = new File(file.getPath() + ".tmp");
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(System.currentTimeMillis());
+			out.writeInt(cols);
+			size = HEADER;
+		}
+
+		/* write - once the file would be too big to map, stops writing,
+		 * and the cache is thrown away at commit()
+		 */
+
+		public void write(String[] line) throws IOException {
+			if( too_big ) {
+				return;
+			}
+			for( int i = 0; i < cols; i++ ) {
+				String v = line[i];
+				if( v == null ) {
+					out.writeInt(-1);
+					size += 4;
+				} else {
+					byte[] b = v.getBytes("UTF-8");
+					out.writeInt(b.length);
+					out.write(b);
+					size += 4 + b.length;
+				}
+			}
+			if( size > Integer.MAX_VALUE ) {
+				log.warn("Rows for " + file + " are over 2 GB, not caching them");
+				too_big = true;
+			}
+		}
+
+		public void commit() throws IOException {
+			if( too_big ) {
+				abort();
+				return;
+			}
+			out.close();
+			FileUtil.replace(temp, file);
+		}
+
+		public void abort() {
+			try {
+				out.close();
+			} catch( IOException e ) {
+				log.warn("Error closing " + temp, e);
+			}
+			temp.delete();
+		}
+	}
+
+
+	public static class Reader {
+
+		private MappedByteBuffer buf;
+		private int cols;
+		private byte[] scratch;
+
+		Reader(File file) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				if( channel.size() > Integer.MAX_VALUE ) {
+					throw new IOException(file + " is too large to map");
+				}
+				buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			} finally {
+				// the mapping stays valid after the file is closed
+				raf.close();
+			}
+			buf.position(16);
+			cols = buf.getInt();
+			scratch = new byte[256];
+		}
+
+		public int getColumnCount() {
+			return cols;
+		}
+
+		/* next - the next row, or null at the end */
+
+		public String[] next() throws IOException {
+			if( !buf.hasRemaining() ) {
+				return null;
+			}
+			String[] line = new String[cols];
+			for( int i = 0; i < cols; i++ ) {
+				int len = buf.getInt();
+				if( len >= 0 ) {
+					if( len > scratch.length ) {
+						scratch = new byte[Math.max(len, scratch.length * 2)];
+					}
+					buf.get(scratch, 0, len);
+					line[i] = new String(scratch, 0, len, "UTF-8");
+				}
+			}
+			return line;
+		}
+	}
+}
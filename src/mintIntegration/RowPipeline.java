@@ -0,0 +1,108 @@
+package mintIntegration;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* RowPipeline - drains a RowSource on its own thread into a bounded
+ * queue of raw rows, so that fetching them overlaps with normalising
+ * and writing them on the caller's thread.
+ *
+ * When the queue is full the reader waits, so it can't get more than
+ * capacity rows ahead of the writer.
+ */
+
+public class RowPipeline implements Runnable {
+
+    private static Logger log = LoggerFactory.getLogger(RowPipeline.class);
+
+    /* marks the end of the rows */
+	private static String[] END = new String[0];
+
+	private RowSource source;
+	private int cols;
+	private BlockingQueue<String[]> queue;
+	private volatile boolean stopped;
+	private volatile Exception error;
+	private Thread thread;
+
+
+	RowPipeline(RowSource source, int cols, int capacity) {
+		this.source = source;
+		this.cols = cols;
+		queue = new ArrayBlockingQueue<String[]>(capacity);
+		stopped = false;
+	}
+
+
+	public void start(String name) {
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+
+	public void run() {
+		try {
+			while( !stopped && source.next() ) {
+				String[] line = new String[cols];
+				for( int i = 0; i < cols; i++ ) {
+					line[i] = source.get(i);
+				}
+				put(line);
+			}
+		} catch( Exception e ) {
+			error = e;
+		}
+		put(END);
+	}
+
+
+	/* put - waits for space, but gives up if the consumer has stopped */
+
+	private void put(String[] line) {
+		try {
+			while( !stopped ) {
+				if( queue.offer(line, 100, TimeUnit.MILLISECONDS) ) {
+					return;
+				}
+			}
+		} catch( InterruptedException e ) {
+			stopped = true;
+		}
+	}
+
+
+	/* take - the next raw row, or null when there aren't any more.
+	 * Throws whatever exception the reader hit.
+	 */
+
+	public String[] take() throws Exception {
+		String[] line = queue.take();
+		if( line == END ) {
+			if( error != null ) {
+				throw error;
+			}
+			return null;
+		}
+		return line;
+	}
+
+
+	/* stop - tells the reader to give up and waits for it */
+
+	public void stop() {
+		stopped = true;
+		queue.clear();
+		if( thread != null ) {
+			try {
+				thread.join();
+			} catch( InterruptedException e ) {
+				log.warn("Interrupted waiting for reader thread");
+			}
+		}
+	}
+}
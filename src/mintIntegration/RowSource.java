@@ -0,0 +1,27 @@
+package mintIntegration;
+
+/* RowSource - where a Feed's raw rows come from.  A source is opened
+ * once per query (or partition), and then read a row at a time like a
+ * ResultSet: next() moves to the next row and get() returns one of its
+ * values, so a source doesn't need to build an array for every row.
+ *
+ * JdbcRowSource runs the query's SQL, DelimitedFileSource reads a CSV
+ * or TSV export and ignores it.
+ */
+
+public interface RowSource {
+
+	/* open - start reading, and return the number of columns */
+
+	int open(String query) throws Exception;
+
+	/* next - move to the next row; false when there are no more */
+
+	boolean next() throws Exception;
+
+	/* get - a value from the current row, columns counting from 0 */
+
+	String get(int col) throws Exception;
+
+	void close();
+}
@@ -0,0 +1,170 @@
+package mintIntegration;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* RunJournal - what a run has got through so far, so that if it dies
+ * the next run can pick up where it left off.  Kept in a properties
+ * file in the working directory, saved after every change:
+ *
+ * started = 1330560000000
+ * Groups.done = 1
+ * People.key = 0012345
+ * People.rows = 40000
+ * People.offset.0 = 5127390
+ * People.offset.1 = 1730011
+ * postprocess.done = 1
+ *
+ * A feed's key, rows and offsets are the checkpoint of a streamed feed:
+ * the last record written, how many records that was, and how long
+ * each of its projections' temporary files were at that point.
+ *
+ * The file is deleted when a run finishes with nothing failed.  A
+ * journal which is older than max_age is from a run which is too long
+ * ago to carry on from, and is ignored.
+ */
+
+public class RunJournal {
+
+    private static Logger log = LoggerFactory.getLogger(RunJournal.class);
+
+	private File file;
+	private Properties props;
+
+
+	RunJournal(File file, long max_age) throws IOException {
+		this.file = file;
+		props = new Properties();
+		if( file.exists() ) {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				props.load(in);
+			} finally {
+				in.close();
+			}
+			long started = Long.parseLong(props.getProperty("started", "0"));
+			if( System.currentTimeMillis() - started > max_age ) {
+				log.info("Run journal " + file + " is too old to resume from, starting again");
+				props.clear();
+			} else {
+				log.info("Resuming the run started at " + new java.util.Date(started));
+			}
+		}
+		if( props.getProperty("started") == null ) {
+			props.setProperty("started", Long.toString(System.currentTimeMillis()));
+			save();
+		}
+	}
+
+
+	public synchronized boolean isDone(String feed) {
+		return props.getProperty(feed + ".done") != null;
+	}
+
+
+	/* done - the feed's files have all been written.  Its checkpoint
+	 * isn't needed any more.
+	 */
+
+	public synchronized void done(String feed) throws IOException {
+		clear(feed);
+		props.setProperty(feed + ".done", "1");
+		save();
+	}
+
+
+	/* getKey - the key of the last record checkpointed, or null */
+
+	public synchronized String getKey(String feed) {
+		return props.getProperty(feed + ".key");
+	}
+
+
+	public synchronized long getRows(String feed) {
+		return Long.parseLong(props.getProperty(feed + ".rows", "0"));
+	}
+
+
+	/* getOffsets - the files' lengths at the checkpoint, or null if
+	 * there isn't one for that many files
+	 */
+
+	public synchronized long[] getOffsets(String feed, int n) {
+		if( getKey(feed) == null ) {
+			return null;
+		}
+		long[] offsets = new long[n];
+		for( int i = 0; i < n; i++ ) {
+			String v = props.getProperty(feed + ".offset." + i);
+			if( v == null ) {
+				return null;
+			}
+			offsets[i] = Long.parseLong(v);
+		}
+		if( props.getProperty(feed + ".offset." + n) != null ) {
+			return null;
+		}
+		return offsets;
+	}
+
+
+	/* checkpoint - everything up to and including the record with key
+	 * is on disk
+	 */
+
+	public synchronized void checkpoint(String feed, String key, long rows, long[] offsets) throws IOException {
+		clear(feed);
+		props.setProperty(feed + ".key", key);
+		props.setProperty(feed + ".rows", Long.toString(rows));
+		for( int i = 0; i < offsets.length; i++ ) {
+			props.setProperty(feed + ".offset." + i, Long.toString(offsets[i]));
+		}
+		save();
+	}
+
+
+	/* discard - forget a feed's checkpoint, so that it starts again */
+
+	public synchronized void discard(String feed) throws IOException {
+		clear(feed);
+		save();
+	}
+
+
+	/* finish - the whole run worked, so there's nothing to resume */
+
+	public synchronized void finish() {
+		props.clear();
+		if( file.exists() && !file.delete() ) {
+			log.warn("Couldn't delete run journal " + file);
+		}
+	}
+
+
+	private void clear(String feed) {
+		String prefix = feed + ".";
+		for( String k: props.stringPropertyNames() ) {
+			if( k.startsWith(prefix) ) {
+				props.remove(k);
+			}
+		}
+	}
+
+
+	private void save() throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			props.store(out, "Mint integration run journal");
+		} finally {
+			out.close();
+		}
+		FileUtil.replace(temp, file);
+	}
+}
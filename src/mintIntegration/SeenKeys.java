@@ -0,0 +1,77 @@
+package mintIntegration;
+
+/* SeenKeys - the keys a streamed feed has already written, so that a
+ * key which turns up again after its record was finished can be caught.
+ * Only a 64-bit hash of each key is kept, in an open-addressed table,
+ * so it's 8 to 16 bytes a key rather than the keys themselves.  Two
+ * keys with the same hash would look like a repeat, but with 64 bits
+ * that needs billions of keys to be likely.
+ */
+
+public class SeenKeys {
+
+	private long[] table;
+	private boolean has_zero;
+	private int size;
+
+
+	SeenKeys() {
+		table = new long[1024];
+	}
+
+
+	/* add - false if the key was already there */
+
+	public boolean add(String key) {
+		long h = DeltaIndex.hash(DeltaIndex.start(), key);
+		if( h == 0 ) {
+			// 0 marks an empty slot
+			boolean added = !has_zero;
+			has_zero = true;
+			return added;
+		}
+		if( (size + 1) * 2 > table.length ) {
+			grow();
+		}
+		if( !insert(table, h) ) {
+			return false;
+		}
+		size++;
+		return true;
+	}
+
+
+	public int size() {
+		return size + ( has_zero ? 1 : 0 );
+	}
+
+
+	private boolean insert(long[] t, long h) {
+		int mask = t.length - 1;
+		// FNV's low bits are poorly mixed, so finish it as murmur3 does
+		long m = h;
+		m ^= m >>> 33;
+		m *= 0xff51afd7ed558ccdL;
+		m ^= m >>> 33;
+		int i = (int)m & mask;
+		while( t[i] != 0 ) {
+			if( t[i] == h ) {
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+		t[i] = h;
+		return true;
+	}
+
+
+	private void grow() {
+		long[] old = table;
+		table = new long[old.length * 2];
+		for( int i = 0; i < old.length; i++ ) {
+			if( old[i] != 0 ) {
+				insert(table, old[i]);
+			}
+		}
+	}
+}
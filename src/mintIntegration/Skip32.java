@@ -0,0 +1,297 @@
+package mintIntegration;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/* Skip32 - Greg Rose's 32-bit block cipher, based on Skipjack, which
+ * is what Crypt::Skip32 implements.  This gives the same encrypted
+ * staff IDs as pp1_fix_ids_and_groups.pl: the key is the 20 hex digit
+ * cryptKey from <staffIDs>, and an ID is encrypted as a big-endian
+ * 32-bit int and written as 8 lowercase hex digits.
+ *
+ * The key schedule, which key byte goes with each of the 96 F table
+ * lookups a block needs, is worked out once when the cipher is made
+ * and the key is only checked then.  After that encrypt() and 
+ * decrypt() don't allocate anything, and one cipher can be shared by
+ * threads.
+ *
+ * Run main() to check against the reference test vector and IDs
+ * encrypted by the Perl, and to time it.
+ */
+
+public class Skip32 {
+
+	private static int ROUNDS = 24;
+
+	/* arrays at least this long are split between threads */
+	private static int PARALLEL_MIN = 1 << 16;
+
+	private static char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static int[] FTABLE = {
+		0xa3,0xd7,0x09,0x83,0xf8,0x48,0xf6,0xf4,0xb3,0x21,0x15,0x78,0x99,0xb1,0xaf,0xf9,
+		0xe7,0x2d,0x4d,0x8a,0xce,0x4c,0xca,0x2e,0x52,0x95,0xd9,0x1e,0x4e,0x38,0x44,0x28,
+		0x0a,0xdf,0x02,0xa0,0x17,0xf1,0x60,0x68,0x12,0xb7,0x7a,0xc3,0xe9,0xfa,0x3d,0x53,
+		0x96,0x84,0x6b,0xba,0xf2,0x63,0x9a,0x19,0x7c,0xae,0xe5,0xf5,0xf7,0x16,0x6a,0xa2,
+		0x39,0xb6,0x7b,0x0f,0xc1,0x93,0x81,0x1b,0xee,0xb4,0x1a,0xea,0xd0,0x91,0x2f,0xb8,
+		0x55,0xb9,0xda,0x85,0x3f,0x41,0xbf,0xe0,0x5a,0x58,0x80,0x5f,0x66,0x0b,0xd8,0x90,
+		0x35,0xd5,0xc0,0xa7,0x33,0x06,0x65,0x69,0x45,0x00,0x94,0x56,0x6d,0x98,0x9b,0x76,
+		0x97,0xfc,0xb2,0xc2,0xb0,0xfe,0xdb,0x20,0xe1,0xeb,0xd6,0xe4,0xdd,0x47,0x4a,0x1d,
+		0x42,0xed,0x9e,0x6e,0x49,0x3c,0xcd,0x43,0x27,0xd2,0x07,0xd4,0xde,0xc7,0x67,0x18,
+		0x89,0xcb,0x30,0x1f,0x8d,0xc6,0x8f,0xaa,0xc8,0x74,0xdc,0xc9,0x5d,0x5c,0x31,0xa4,
+		0x70,0x88,0x61,0x2c,0x9f,0x0d,0x2b,0x87,0x50,0x82,0x54,0x64,0x26,0x7d,0x03,0x40,
+		0x34,0x4b,0x1c,0x73,0xd1,0xc4,0xfd,0x3b,0xcc,0xfb,0x7f,0xab,0xe6,0x3e,0x5b,0xa5,
+		0xad,0x04,0x23,0x9c,0x14,0x51,0x22,0xf0,0x29,0x79,0x71,0x7e,0xff,0x8c,0x0e,0xe2,
+		0x0c,0xef,0xbc,0x72,0x75,0x6f,0x37,0xa1,0xec,0xd3,0x8e,0x62,0x8b,0x86,0x10,0xe8,
+		0x08,0x77,0x11,0xbe,0x92,0x4f,0x24,0xc5,0x32,0x36,0x9d,0xcf,0xf3,0xa6,0xbb,0xac,
+		0x5e,0x6c,0xa9,0x13,0x57,0x25,0xb5,0xe3,0xbd,0xa8,0x3a,0x01,0x05,0x59,0x2a,0x46
+	};
+
+	/* schedule[4 * k + j] = the key byte for round k, lookup j */
+	private int[] schedule;
+
+
+	/* key is the 10 key bytes */
+
+	Skip32(byte[] key) {
+		if( key.length != 10 ) {
+			throw new IllegalArgumentException("Skip32 key must be 10 bytes");
+		}
+		schedule = new int[4 * ROUNDS];
+		for( int i = 0; i < schedule.length; i++ ) {
+			schedule[i] = key[i % 10] & 0xFF;
+		}
+	}
+
+
+	/* fromHex - a cipher for a cryptKey of 20 hex digits */
+
+	public static Skip32 fromHex(String hex) {
+		if( hex == null || !hex.matches("[0-9A-Fa-f]{20}") ) {
+			throw new IllegalArgumentException("cryptKey must be a 20-digit hexadecimal number");
+		}
+		byte[] key = new byte[10];
+		for( int i = 0; i < 10; i++ ) {
+			key[i] = (byte)Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return new Skip32(key);
+	}
+
+
+	public int encrypt(int value) {
+		return cipher(value, 0, 1);
+	}
+
+
+	public int decrypt(int value) {
+		return cipher(value, ROUNDS - 1, -1);
+	}
+
+
+	/* encrypt - a batch: out[i] = encrypt(in[i]).  out can be in. */
+
+	public void encrypt(int[] in, int[] out) {
+		run(in, out, 0, in.length, 0, 1);
+	}
+
+
+	public void decrypt(int[] in, int[] out) {
+		run(in, out, 0, in.length, ROUNDS - 1, -1);
+	}
+
+
+	/* encrypt - a batch split between up to threads threads, if it's
+	 * big enough to be worth it
+	 */
+
+	public void encrypt(int[] in, int[] out, int threads) {
+		parallel(in, out, threads, 0, 1);
+	}
+
+
+	public void decrypt(int[] in, int[] out, int threads) {
+		parallel(in, out, threads, ROUNDS - 1, -1);
+	}
+
+
+	/* encryptHex - as pack("N"), encrypt and unpack("H8") */
+
+	public String encryptHex(long id) {
+		return toHex(encrypt((int)id));
+	}
+
+
+	public static String toHex(int value) {
+		char[] c = new char[8];
+		for( int i = 7; i >= 0; i-- ) {
+			c[i] = HEX[value & 0xF];
+			value >>>= 4;
+		}
+		return new String(c);
+	}
+
+
+	/* fromHex8 - the int for 8 hex digits, as unpack("N", pack("H8")) */
+
+	public static int fromHex8(String hex) {
+		return (int)Long.parseLong(hex, 16);
+	}
+
+
+	private void parallel(final int[] in, final int[] out, int threads, final int k0, final int kstep) {
+		int n = in.length;
+		if( threads <= 1 || n < PARALLEL_MIN ) {
+			run(in, out, 0, n, k0, kstep);
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		ArrayList<Future<Object>> results = new ArrayList<Future<Object>>();
+		int chunk = (n + threads - 1) / threads;
+		for( int start = 0; start < n; start += chunk ) {
+			final int from = start;
+			final int to = Math.min(n, start + chunk);
+			results.add(executor.submit(new Callable<Object>() {
+				public Object call() {
+					run(in, out, from, to, k0, kstep);
+					return null;
+				}
+			}));
+		}
+		try {
+			for( Future<Object> f: results ) {
+				f.get();
+			}
+		} catch( Exception e ) {
+			throw new RuntimeException("Skip32 batch failed", e);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+
+	private void run(int[] in, int[] out, int from, int to, int k0, int kstep) {
+		for( int i = from; i < to; i++ ) {
+			out[i] = cipher(in[i], k0, kstep);
+		}
+	}
+
+
+	private int cipher(int value, int k, int kstep) {
+		int wl = (value >>> 16) & 0xFFFF;
+		int wr = value & 0xFFFF;
+		for( int i = 0; i < ROUNDS / 2; i++ ) {
+			wr ^= g(k, wl) ^ k;
+			k += kstep;
+			wl ^= g(k, wr) ^ k;
+			k += kstep;
+		}
+		return (wr << 16) | wl;
+	}
+
+
+	private int g(int k, int w) {
+		int s = 4 * k;
+		int g1 = (w >> 8) & 0xFF;
+		int g2 = w & 0xFF;
+		int[] f = FTABLE;
+		int g3 = f[g2 ^ schedule[s]] ^ g1;
+		int g4 = f[g3 ^ schedule[s + 1]] ^ g2;
+		int g5 = f[g4 ^ schedule[s + 2]] ^ g3;
+		int g6 = f[g5 ^ schedule[s + 3]] ^ g4;
+		return (g5 << 8) | g6;
+	}
+
+
+	/* PERL_VECTORS - key, staff ID and encrypted ID, as encrypt_one_id in
+	 * pp1_fix_ids_and_groups.pl gives them.  They cover IDs with leading
+	 * zeros, which Perl reads as decimal, and IDs past 2^31, up to the
+	 * widest which fits in pack("N").
+	 */
+
+	private static String[][] PERL_VECTORS = {
+		{ "00998877665544332211", "0", "9349741e" },
+		{ "00998877665544332211", "1", "446ada68" },
+		{ "00998877665544332211", "42", "50c14771" },
+		{ "00998877665544332211", "0000001", "446ada68" },
+		{ "00998877665544332211", "0012345", "5a88b03c" },
+		{ "00998877665544332211", "123456", "c139c80c" },
+		{ "00998877665544332211", "999999", "49b5f125" },
+		{ "00998877665544332211", "01234567", "286eb088" },
+		{ "00998877665544332211", "99999999", "a41124de" },
+		{ "00998877665544332211", "987654321", "fd65050c" },
+		{ "00998877665544332211", "2147483648", "7f6f900c" },
+		{ "00998877665544332211", "4294967295", "32ff23b2" },
+		{ "0123456789ABCDEF0123", "0", "95acf169" },
+		{ "0123456789ABCDEF0123", "1", "272571d8" },
+		{ "0123456789ABCDEF0123", "42", "af8cea9c" },
+		{ "0123456789ABCDEF0123", "0000001", "272571d8" },
+		{ "0123456789ABCDEF0123", "0012345", "a8075ab1" },
+		{ "0123456789ABCDEF0123", "123456", "fdefc9fd" },
+		{ "0123456789ABCDEF0123", "999999", "d664c5eb" },
+		{ "0123456789ABCDEF0123", "01234567", "162b6486" },
+		{ "0123456789ABCDEF0123", "99999999", "9c606d95" },
+		{ "0123456789ABCDEF0123", "987654321", "458e3d63" },
+		{ "0123456789ABCDEF0123", "2147483648", "17edeea1" },
+		{ "0123456789ABCDEF0123", "4294967295", "221ef931" },
+	};
+
+
+	/* main - checks the reference vector from skip32.c, the Perl
+	 * vectors, that every ID
+	 * decrypts back to itself, and times encrypting a batch of IDs
+	 * one at a time and in parallel.
+	 */
+
+	public static void main(String[] args) {
+		int n = 10000000;
+		if( args.length > 0 ) {
+			n = Integer.parseInt(args[0]);
+		}
+
+		Skip32 s = fromHex("00998877665544332211");
+		int e = s.encrypt(0x33221100);
+		boolean ok = ( e == 0x819d5f1f && s.decrypt(e) == 0x33221100 );
+		System.out.println("Reference vector 33221100 -> " + toHex(e) + ( ok ? " OK" : " FAILED, expected 819d5f1f" ));
+
+		for( String[] v: PERL_VECTORS ) {
+			String got = fromHex(v[0]).encryptHex(EncryptIdsStage.parseId(v[1]));
+			if( !got.equals(v[2]) ) {
+				System.out.println("Key " + v[0] + " ID " + v[1] + " -> " + got + " FAILED, Perl gives " + v[2]);
+				ok = false;
+			}
+		}
+		System.out.println(PERL_VECTORS.length + " Perl vectors" + ( ok ? " OK" : " FAILED" ));
+
+		int[] ids = new int[n];
+		for( int i = 0; i < n; i++ ) {
+			ids[i] = i * 7 + 100000;
+		}
+		int[] enc = new int[n];
+		long start = System.currentTimeMillis();
+		s.encrypt(ids, enc);
+		long single = System.currentTimeMillis() - start;
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		int[] penc = new int[n];
+		start = System.currentTimeMillis();
+		s.encrypt(ids, penc, threads);
+		long par = System.currentTimeMillis() - start;
+
+		int[] dec = new int[n];
+		s.decrypt(penc, dec, threads);
+		int bad = 0;
+		for( int i = 0; i < n; i++ ) {
+			if( enc[i] != penc[i] || dec[i] != ids[i] ) {
+				bad++;
+			}
+		}
+		System.out.println(n + " IDs: " + single + " ms on one thread, " + par + " ms on " 
+				+ threads + ", " + bad + " mismatches");
+		if( !ok || bad > 0 ) {
+			System.exit(1);
+		}
+	}
+}
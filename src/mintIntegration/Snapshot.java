@@ -0,0 +1,133 @@
+package mintIntegration;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/* Snapshot - a feed's merged records, saved between runs so that an
+ * incremental query only has to fetch the rows which have changed.
+ *
+ * The file is a version number, the field names and then each record's
+ * key and values.  A snapshot is only loaded if its fields match the
+ * feed's current layout, so changing the outfields forces a full sync.
+ */
+
+public class Snapshot {
+
+	private static int VERSION = 1;
+
+
+	public static void save(RecordStore store, File file) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+		try {
+			out.writeInt(VERSION);
+			out.writeInt(store.width());
+			for( int c = 0; c < store.width(); c++ ) {
+				out.writeUTF(store.field(c));
+			}
+			out.writeInt(store.size());
+			for( int r = 0; r < store.size(); r++ ) {
+				FileUtil.writeString(out, store.key(r));
+				for( int c = 0; c < store.width(); c++ ) {
+					FileUtil.writeString(out, store.get(r, c));
+				}
+			}
+		} finally {
+			out.close();
+		}
+		FileUtil.replace(temp, file);
+	}
+
+
+	/* matches - whether the snapshot exists and has the same fields as
+	 * layout, without reading the records
+	 */
+
+	public static boolean matches(File file, RecordStore layout) {
+		if( !file.exists() ) {
+			return false;
+		}
+		try {
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(file)));
+			try {
+				return readHeader(in, file, layout);
+			} finally {
+				in.close();
+			}
+		} catch( IOException e ) {
+			return false;
+		}
+	}
+
+
+	private static boolean readHeader(DataInputStream in, File file, RecordStore layout) throws IOException {
+		int version = in.readInt();
+		if( version != VERSION ) {
+			throw new IOException(file + ": unknown snapshot version " + version);
+		}
+		int width = in.readInt();
+		if( width != layout.width() ) {
+			return false;
+		}
+		for( int c = 0; c < width; c++ ) {
+			if( !in.readUTF().equals(layout.field(c)) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/* load - returns null if the snapshot was saved with different fields */
+
+	public static RecordStore load(File file, RecordStore layout) throws IOException {
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if( !readHeader(in, file, layout) ) {
+				return null;
+			}
+			int width = layout.width();
+			RecordStore store = layout.emptyCopy();
+			int size = in.readInt();
+			for( int r = 0; r < size; r++ ) {
+				int row = store.add(FileUtil.readString(in));
+				for( int c = 0; c < width; c++ ) {
+					store.set(row, c, FileUtil.readString(in));
+				}
+			}
+			return store;
+		} finally {
+			in.close();
+		}
+	}
+
+
+	/* merge - every record in changes replaces the one in snapshot with
+	 * the same key, or is added to it.  So changes must have all of the
+	 * fields for each record, not just the ones which changed.  Nothing
+	 * is ever removed: records deleted at source are only dropped by a
+	 * full sync.
+	 */
+
+	public static void merge(RecordStore snapshot, RecordStore changes) {
+		for( int r = 0; r < changes.size(); r++ ) {
+			String key = changes.key(r);
+			int row = snapshot.find(key);
+			if( row < 0 ) {
+				row = snapshot.add(key);
+			}
+			for( int c = 0; c < changes.width(); c++ ) {
+				snapshot.set(row, c, changes.get(r, c));
+			}
+		}
+	}
+}
@@ -0,0 +1,230 @@
+package mintIntegration;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* SpillSorter - groups raw rows by key in bounded memory.
+ *
+ * Rows are buffered until their estimated size goes over the budget,
+ * at which point the buffer is sorted by key and written out to a
+ * temporary run file.  finish() merges the runs and hands the rows
+ * back in key order, so that the caller can fold adjacent rows with
+ * the same key just as it does for a query with an ORDER BY.
+ *
+ * Rows with the same key come back in the order they were added: the
+ * sort is stable and ties in the merge go to the earlier run.
+ */
+
+public class SpillSorter {
+
+    private static Logger log = LoggerFactory.getLogger(SpillSorter.class);
+
+    /* rough per-object overheads used to estimate the buffer's size */
+    private static int ROW_OVERHEAD = 48;
+    private static int STRING_OVERHEAD = 40;
+
+	public interface RowHandler {
+		void row(String id, String[] line) throws IOException;
+	}
+
+	private String name;
+	private File dir;
+	private long budget;
+	private long used;
+	private ArrayList<Row> buffer;
+	private ArrayList<File> runs;
+
+
+	/* SpillSorter - buffers up to budget bytes of rows before spilling
+	 * a sorted run to a temporary file in dir, named after name
+	 */
+
+	SpillSorter(String name, File dir, long budget) {
+		this.name = name;
+		this.dir = dir;
+		this.budget = budget;
+		buffer = new ArrayList<Row>();
+		runs = new ArrayList<File>();
+		used = 0;
+	}
+
+
+	public void add(String id, String[] line) throws IOException {
+		buffer.add(new Row(id, line));
+		used += estimate(id, line);
+		if( used > budget ) {
+			spill();
+		}
+	}
+
+
+	/* finish - sends all of the rows to handler in key order, and
+	 * removes the run files.
+	 */
+
+	public void finish(RowHandler handler) throws IOException {
+		try {
+			if( runs.isEmpty() ) {
+				Collections.sort(buffer, ROW_ORDER);
+				for( Row r: buffer ) {
+					handler.row(r.id, r.line);
+				}
+				buffer.clear();
+			} else {
+				spill();
+				merge(handler);
+			}
+		} finally {
+			for( File run: runs ) {
+				if( !run.delete() ) {
+					log.warn("Couldn't delete run file " + run);
+				}
+			}
+			runs.clear();
+		}
+	}
+
+
+	private void spill() throws IOException {
+		if( buffer.isEmpty() ) {
+			return;
+		}
+		Collections.sort(buffer, ROW_ORDER);
+		File run = File.createTempFile("mint-" + name + "-", ".run", dir);
+		run.deleteOnExit();
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+		try {
+			for( Row r: buffer ) {
+				FileUtil.writeString(out, r.id);
+				out.writeInt(r.line.length);
+				for( String v: r.line ) {
+					FileUtil.writeString(out, v);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		log.debug(name + ": spilled " + buffer.size() + " rows to " + run);
+		runs.add(run);
+		buffer.clear();
+		used = 0;
+	}
+
+
+	private void merge(RowHandler handler) throws IOException {
+		log.debug(name + ": merging " + runs.size() + " runs");
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(runs.size(), READER_ORDER);
+		ArrayList<RunReader> readers = new ArrayList<RunReader>();
+		try {
+			for( int i = 0; i < runs.size(); i++ ) {
+				RunReader reader = new RunReader(runs.get(i), i);
+				readers.add(reader);
+				if( reader.next() ) {
+					queue.add(reader);
+				}
+			}
+			while( !queue.isEmpty() ) {
+				RunReader reader = queue.poll();
+				handler.row(reader.row.id, reader.row.line);
+				if( reader.next() ) {
+					queue.add(reader);
+				}
+			}
+		} finally {
+			for( RunReader reader: readers ) {
+				reader.close();
+			}
+		}
+	}
+
+
+	private static long estimate(String id, String[] line) {
+		long n = ROW_OVERHEAD + 8 * line.length;
+		for( String v: line ) {
+			if( v != null ) {
+				n += STRING_OVERHEAD + 2 * v.length();
+			}
+		}
+		return n;
+	}
+
+
+	private static class Row {
+		String id;
+		String[] line;
+
+		Row(String id, String[] line) {
+			this.id = id;
+			this.line = line;
+		}
+	}
+
+
+	private static Comparator<Row> ROW_ORDER = new Comparator<Row>() {
+		public int compare(Row a, Row b) {
+			return a.id.compareTo(b.id);
+		}
+	};
+
+
+	private static Comparator<RunReader> READER_ORDER = new Comparator<RunReader>() {
+		public int compare(RunReader a, RunReader b) {
+			int c = a.row.id.compareTo(b.row.id);
+			if( c == 0 ) {
+				c = a.seq - b.seq;
+			}
+			return c;
+		}
+	};
+
+
+	private static class RunReader {
+		private DataInputStream in;
+		private int seq;
+		Row row;
+
+		RunReader(File run, int seq) throws IOException {
+			this.seq = seq;
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+		}
+
+		boolean next() throws IOException {
+			String id;
+			try {
+				id = FileUtil.readString(in);
+			} catch( EOFException e ) {
+				row = null;
+				return false;
+			}
+			String[] line = new String[in.readInt()];
+			for( int i = 0; i < line.length; i++ ) {
+				line[i] = FileUtil.readString(in);
+			}
+			row = new Row(id, line);
+			return true;
+		}
+
+		void close() {
+			try {
+				in.close();
+			} catch( IOException e ) {
+				log.warn("Error closing run file", e);
+			}
+		}
+	}
+}
@@ -1,8 +1,17 @@
 package mintIntegration;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
@@ -14,6 +23,9 @@ public class StaffModuleFeeder {
 	
     private static XMLConfiguration conf = null;
     private static Connection con = null;
+    private static Watermarks watermarks = null;
+    private static RunJournal journal = null;
+    private static HashSet<String> reread = new HashSet<String>();
     
     private static Logger log = LoggerFactory.getLogger(StaffModuleFeeder.class);
    
@@ -25,8 +37,11 @@ public class StaffModuleFeeder {
     	
     	config_file = env.get("RDCMINT_CONFIG");
     	
+    	// the exit status is 1 if anything failed, so that cron and the
+    	// scripts which run this can tell
     	if( config_file == null || config_file.isEmpty() ) {
     		log.error("Set environment variable RDCMINT_CONFIG to config file location.");
+    		System.exit(1);
     	} else {
     		
     		try {
@@ -34,26 +49,119 @@ public class StaffModuleFeeder {
     			conf.setDelimiterParsingDisabled(true);
     			conf.load(config_file);
 
-    			dbConnect();
-    			
     			Configuration locations = conf.subset("locations");
     			working_dir = locations.getString("working");
            		Configuration queries = conf.subset("queries");
+           		
+           		// <queries concurrency="N"> runs up to N feeds at once,
+           		// each on its own connection. The default is one at a time.
+           		int concurrency = conf.getInt("queries[@concurrency]", 1);
 
         		int i = 0;
+        		ArrayList<Feed> feeds = new ArrayList<Feed>();
         	
         		while( queries.getString("query(" + i + ")[@name]") != null ) {
         			Configuration qcon = queries.subset("query(" + i + ")");
         			String name = queries.getString("query(" + i + ")[@name]");
         			i++;
         			Feed feed = new Feed(working_dir, qcon);
-        			feed.runQuery(con);
-        			feed.printCSV();
+        			feed.setDatabaseUrl(dbUrl());
+        			feeds.add(feed);
+        		}
+        		
+        		watermarks = new Watermarks(new File(working_dir, "watermarks.properties"));
+        		for( Feed feed: feeds ) {
+        			if( feed.isIncremental() ) {
+        				feed.setWatermark(watermarks.get(feed.getName()), 
+        						watermarks.needsFullSync(feed.getName(), feed.getResyncDays()));
+        			}
+        		}
+        		
+        		// <postprocess> stages run once all of the feeds are done
+        		PostProcess pp = PostProcess.fromConfig(conf, feeds);
+        		
+        		// <queries resume_hours="N" checkpoint="ROWS"> keeps a journal
+        		// of the run, so that a run restarted within N hours skips 
+        		// the feeds which finished and carries on with the streamed
+        		// ones from their last checkpoint.  resume_hours="0" turns it
+        		// off.
+        		int resume_hours = conf.getInt("queries[@resume_hours]", 12);
+        		int checkpoint = conf.getInt("queries[@checkpoint]", 10000);
+        		if( resume_hours > 0 ) {
+        			journal = new RunJournal(new File(working_dir, "run.journal"), 
+        					resume_hours * 60L * 60 * 1000);
+        		}
+        		
+        		boolean pp_done = journal != null && journal.isDone("postprocess");
+        		ArrayList<Feed> todo = new ArrayList<Feed>();
+        		for( Feed feed: feeds ) {
+        			// a finished feed whose records the post-processing 
+        			// still needs has to be read again, but its files are
+        			// left as they are
+        			if( journal != null && journal.isDone(feed.getName()) ) {
+        				if( pp == null || pp_done || !pp.uses(feed.getName()) ) {
+        					log.info("Feed " + feed.getName() + " finished in the last run, skipping");
+        					continue;
+        				}
+        				reread.add(feed.getName());
+        			}
+        			feed.setJournal(journal, checkpoint);
+        			todo.add(feed);
+        		}
+        		
+        		int failed = 0;
+        		if( concurrency > 1 && todo.size() > 1 ) {
+        			failed = runConcurrent(todo, concurrency);
+        		} else {
+        			for( Feed feed: todo ) {
+        				if( !runFeed(feed) ) {
+        					log.error("Feed " + feed.getName() + ": FAILED");
+        					failed++;
+        				}
+        			}
+        			if( con != null ) {
+        				try {
+        					con.close();
+        				} catch( SQLException e ) {
+        					log.warn("Error closing database connection", e);
+        				}
+        				con = null;
+        			}
+        		}
+        		if( pp != null && !pp_done ) {
+        			if( pp.run() ) {
+        				journalDone("postprocess");
+        			} else {
+        				log.error("Post-processing failed");
+        				failed++;
+        			}
+        		}
+        		// the delta indexes only move on once everything has worked,
+        		// so that the next run's deltas are against this run's files
+        		if( failed == 0 ) {
+        			for( Feed feed: feeds ) {
+        				if( !feed.commitIndexes() ) {
+        					failed++;
+        				}
+        			}
+        		}
+        		if( journal != null && failed == 0 ) {
+        			journal.finish();
+        		}
+        		if( failed > 0 ) {
+        			log.error("Done, with " + failed + " failures");
+        			System.exit(1);
         		}
         		System.out.println("Done.");
     		} catch( ConfigurationException e ) {
-    			log.error("Config error");
-    			e.printStackTrace();
+    			log.error("Config error", e);
+    			System.exit(1);
+    		} catch( IOException e ) {
+    			log.error("Couldn't read watermarks or run journal", e);
+    			System.exit(1);
+    		} catch( RuntimeException e ) {
+    			log.error("Couldn't set up the feeds", e);
+    			System.exit(1);
     		};
     	
     	}
@@ -61,28 +169,292 @@ public class StaffModuleFeeder {
     
     
     
+    /* runFeed - runs a feed on the shared connection, which is only 
+     * opened once a feed needs it.  Anything it throws is logged and 
+     * counts as a failure, so that the other feeds still run.
+     */
+    
+    static boolean runFeed(Feed feed) {
+    	try {
+    		boolean ok = false;
+    		boolean db = feed.usesDatabase();
+    		if( db && feed.getPartitionCount() > 1 ) {
+    			ok = runPartitioned(feed);
+    		} else if( db && feed.usesServerCursor() ) {
+    			ok = runCursor(feed);
+    		} else {
+    			if( db && con == null ) {
+    				con = dbConnect(false);
+    			}
+    			ok = feed.runQuery(con);
+    		}
+    		if( ok ) {
+    			ok = finishFeed(feed);
+    		}
+    		return ok;
+    	} catch( RuntimeException e ) {
+    		log.error("Feed " + feed.getName() + " threw an exception", e);
+    		return false;
+    	}
+    }
+    
     
+    /* runConcurrent - run the feeds on a fixed-size thread pool, with
+     * one database connection per thread, and report how each one went.
+     * Returns the number which failed.
+     */
     
-    static void dbConnect() {
+    static int runConcurrent(ArrayList<Feed> feeds, int concurrency) {
+    	int n_db = 0;
+    	boolean[] db = new boolean[feeds.size()];
+    	for( int i = 0; i < feeds.size(); i++ ) {
+    		db[i] = feeds.get(i).usesDatabase();
+    		if( db[i] && !feeds.get(i).usesServerCursor() ) {
+    			n_db++;
+    		}
+    	}
+    	ConnectionPool pool = new ConnectionPool(1);
+    	if( n_db > 0 ) {
+    		pool = openPool(Math.min(concurrency, n_db), false);
+    	}
+    	
+    	if( n_db > 0 && pool.size() == 0 ) {
+    		log.error("No database connections available");
+    		return feeds.size();
+    	}
+    	
+    	int threads = Math.min(concurrency, feeds.size());
+    	log.info("Running " + feeds.size() + " feeds on " + threads + " threads with " 
+    			+ pool.size() + " connections");
+    	
+    	ExecutorService executor = Executors.newFixedThreadPool(threads);
+    	ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+    	
+    	for( int i = 0; i < feeds.size(); i++ ) {
+    		results.add(executor.submit(new FeedTask(feeds.get(i), pool, db[i])));
+    	}
     	
-    	String type = conf.getString("connection.type");
-    	String server = conf.getString("connection.server");
-    	String port = conf.getString("connection.port");
-    	String database = conf.getString("connection.database");
-    	String domain = conf.getString("connection.domain");
+    	int failed = 0;
+    	for( int i = 0; i < feeds.size(); i++ ) {
+    		String name = feeds.get(i).getName();
+    		boolean ok = false;
+    		try {
+    			ok = results.get(i).get().booleanValue();
+    		} catch( Exception e ) {
+    			log.error("Feed " + name + " threw an exception", e);
+    		}
+    		if( ok ) {
+    			log.info("Feed " + name + ": OK");
+    		} else {
+    			log.error("Feed " + name + ": FAILED");
+    			failed++;
+    		}
+    	}
+    	
+    	executor.shutdown();
+    	pool.close();
+    	
+    	if( failed > 0 ) {
+    		log.error(failed + " of " + feeds.size() + " feeds failed");
+    	}
+    	return failed;
+    }
+    
+    
+    /* FeedTask - runs a single feed on a connection borrowed from the 
+     * pool, if it needs one
+     */
+    
+    static class FeedTask implements Callable<Boolean> {
+    	
+    	private Feed feed;
+    	private ConnectionPool pool;
+    	private boolean db;
+    	
+    	FeedTask(Feed feed, ConnectionPool pool, boolean db) {
+    		this.feed = feed;
+    		this.pool = pool;
+    		this.db = db;
+    	}
+    	
+    	public Boolean call() throws Exception {
+    		boolean ok = false;
+    		if( !db ) {
+    			ok = feed.runQuery(null);
+    		} else if( feed.getPartitionCount() > 1 ) {
+    			ok = runPartitioned(feed);
+    		} else if( feed.usesServerCursor() ) {
+    			ok = runCursor(feed);
+    		} else {
+    			Connection c = pool.take();
+    			try {
+    				ok = feed.runQuery(c);
+    			} finally {
+    				pool.release(c);
+    			}
+    		}
+    		if( ok ) {
+    			ok = finishFeed(feed);
+    		}
+    		return Boolean.valueOf(ok);
+    	}
+    }
+    
+    
+    
+    /* finishFeed - writes the feed's files and then, for an incremental
+     * feed, saves its snapshot and advances its watermark, so that the
+     * watermark only moves once the records have been written out.  The
+     * feed is only marked done in the journal after all that.  A feed
+     * which was done in the last run and has only been read again for
+     * the post-processing keeps the files it wrote then.
+     */
+    
+    static boolean finishFeed(Feed feed) {
+    	if( reread.contains(feed.getName()) ) {
+    		log.info("Feed " + feed.getName() + " was only read again for the post-processing");
+    		return true;
+    	}
+    	if( !feed.printCSV() ) {
+    		return false;
+    	}
+    	if( feed.isIncremental() ) {
+    		if( !feed.saveSnapshot() ) {
+    			return false;
+    		}
+    		try {
+    			watermarks.advance(feed.getName(), feed.getNewWatermark(), feed.isFullSync());
+    		} catch( IOException e ) {
+    			log.error("Couldn't save watermark for " + feed.getName(), e);
+    			return false;
+    		}
+    	}
+    	journalDone(feed.getName());
+    	return true;
+    }
+    
+    
+    /* journalDone - a failure to record it only means it'll be run again */
+    
+    static void journalDone(String name) {
+    	if( journal == null ) {
+    		return;
+    	}
+    	try {
+    		journal.done(name);
+    	} catch( IOException e ) {
+    		log.error("Couldn't update run journal", e);
+    	}
+    }
+    
+    
+    /* runPartitioned - a partitioned feed gets its own set of connections,
+     * one per partition, so that it can't starve the other feeds.
+     */
+    
+    static boolean runPartitioned(Feed feed) {
+    	ConnectionPool fpool = openPool(feed.getPartitionCount(), feed.usesServerCursor());
+    	if( fpool.size() == 0 ) {
+    		log.error("No database connections for " + feed.getName());
+    		return false;
+    	}
+    	try {
+    		return feed.runPartitioned(fpool);
+    	} finally {
+    		fpool.close();
+    	}
+    }
+    
+    
+    /* runCursor - useCursors is set for the whole connection, so a feed
+     * with server_cursor gets one of its own rather than changing what
+     * the other feeds get
+     */
+    
+    static boolean runCursor(Feed feed) {
+    	Connection c = dbConnect(true);
+    	if( c == null ) {
+    		log.error("No database connection for " + feed.getName());
+    		return false;
+    	}
+    	try {
+    		return feed.runQuery(c);
+    	} finally {
+    		try {
+    			c.close();
+    		} catch( SQLException e ) {
+    			log.warn("Error closing database connection", e);
+    		}
+    	}
+    }
+    
+    
+    static ConnectionPool openPool(int n, boolean cursors) {
+    	ConnectionPool pool = new ConnectionPool(n);
+    	for( int i = 0; i < n; i++ ) {
+    		Connection c = dbConnect(cursors);
+    		if( c != null ) {
+    			pool.add(c);
+    		}
+    	}
+    	return pool;
+    }
+    
+    
+    /* dbConnect - opens a new database connection, which belongs to the
+     * caller: runFeed keeps one in con for the sequential case, and the
+     * pools open their own. Returns null on failure.
+     * 
+     * The default is a jTDS connection built from the type, server, port,
+     * database and domain; <driver> and <url> in <connection> can be used
+     * to connect to anything else.  With cursors, a jTDS connection has
+     * useCursors=true, so that its queries are read through server-side
+     * cursors.
+     */
+    
+    static Connection dbConnect(boolean cursors) {
+    	
+    	String driver = conf.getString("connection.driver", "net.sourceforge.jtds.jdbc.Driver");
     	String user = conf.getString("connection.user");
     	String password = conf.getString("connection.password");
-    	String dbi = "jdbc:jtds:" + type + "://" + server + ":" + port + "/" + database + ";domain=" + domain; 
+    	String dbi = dbUrl();
+    	if( cursors ) {
+    		if( dbi.startsWith("jdbc:jtds:") ) {
+    			dbi += ";useCursors=true";
+    		} else {
+    			log.warn("Server cursors are only set up for jTDS, using " + dbi + " as it is");
+    		}
+    	}
 
     	log.debug("DBI: " + dbi);
     	
         try {
-            Class.forName("net.sourceforge.jtds.jdbc.Driver");
-            con = DriverManager.getConnection(dbi, user, password);
+            Class.forName(driver);
+            Connection c = DriverManager.getConnection(dbi, user, password);
             log.debug("Connected to database");
+            return c;
             
         } catch (Exception e) {
         	log.error("Couldn't connect to database", e);
         }
+        return null;
+    }
+    
+    
+    /* dbUrl - the JDBC URL from the config, which is also what the row
+     * caches are keyed on
+     */
+    
+    static String dbUrl() {
+    	String dbi = conf.getString("connection.url");
+    	if( dbi == null ) {
+    		String type = conf.getString("connection.type");
+    		String server = conf.getString("connection.server");
+    		String port = conf.getString("connection.port");
+    		String database = conf.getString("connection.database");
+    		String domain = conf.getString("connection.domain");
+    		dbi = "jdbc:jtds:" + type + "://" + server + ":" + port + "/" + database + ";domain=" + domain; 
+    	}
+    	return dbi;
     }
 }
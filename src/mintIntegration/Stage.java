@@ -0,0 +1,15 @@
+package mintIntegration;
+
+/* Stage - one step of the post-processing which used to be done by
+ * the Perl scripts, run on a feed's records in memory after all of the
+ * feeds have been fetched.  See PostProcess.
+ */
+
+public interface Stage {
+
+	/* apply - returns the transformed records: either records itself,
+	 * changed in place, or a new store with the same layout.
+	 */
+
+	RecordStore apply(RecordStore records, PostProcess pp) throws Exception;
+}
@@ -0,0 +1,104 @@
+package mintIntegration;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+/* Template - a string with $NAME or ${NAME} placeholders, parsed once
+ * into its literal parts and names.  The names are looked up as fields
+ * of a RecordStore, possibly renamed by a map of parameters (so that
+ * the $ID in a faculty URL can mean the Email_Prefix field).
+ */
+
+public class Template {
+
+	private String text;
+	private String[] literals;
+	private String[] names;
+
+
+	/* literal - a template which is just the value, even if it has a $ in it */
+
+	public static Template literal(String value) {
+		Template t = new Template("");
+		t.text = value;
+		t.literals = new String[] { value };
+		return t;
+	}
+
+
+	Template(String text) {
+		this.text = text;
+		ArrayList<String> lits = new ArrayList<String>();
+		ArrayList<String> vars = new ArrayList<String>();
+		StringBuilder lit = new StringBuilder();
+		int i = 0;
+		int n = text.length();
+		while( i < n ) {
+			char c = text.charAt(i);
+			if( c == '$' && i + 1 < n ) {
+				int start = i + 1;
+				boolean braced = text.charAt(start) == '{';
+				if( braced ) {
+					start++;
+				}
+				int end = start;
+				while( end < n && (Character.isLetterOrDigit(text.charAt(end)) || text.charAt(end) == '_') ) {
+					end++;
+				}
+				if( end > start && (!braced || (end < n && text.charAt(end) == '}')) ) {
+					lits.add(lit.toString());
+					lit.setLength(0);
+					vars.add(text.substring(start, end));
+					i = braced ? end + 1 : end;
+					continue;
+				}
+			}
+			lit.append(c);
+			i++;
+		}
+		lits.add(lit.toString());
+		literals = lits.toArray(new String[lits.size()]);
+		names = vars.toArray(new String[vars.size()]);
+	}
+
+
+	public String getText() {
+		return text;
+	}
+
+
+	/* columns - where each placeholder's value comes from in layout,
+	 * -1 if it isn't a field there
+	 */
+
+	public int[] columns(RecordStore layout, Map<String, String> params) {
+		int[] cols = new int[names.length];
+		for( int i = 0; i < names.length; i++ ) {
+			String field = names[i];
+			if( params != null && params.containsKey(field) ) {
+				field = params.get(field);
+			}
+			cols[i] = layout.column(field);
+		}
+		return cols;
+	}
+
+
+	/* render - missing values are left empty */
+
+	public String render(RecordStore store, int row, int[] cols) {
+		if( names.length == 0 ) {
+			return literals[0];
+		}
+		StringBuilder b = new StringBuilder(text.length() + 16);
+		for( int i = 0; i < names.length; i++ ) {
+			b.append(literals[i]);
+			String v = store.get(row, cols[i]);
+			if( v != null ) {
+				b.append(v);
+			}
+		}
+		b.append(literals[names.length]);
+		return b.toString();
+	}
+}
@@ -0,0 +1,128 @@
+package mintIntegration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/* TestProfileVerifier - serves some profile pages from localhost, with
+ * ETags and a delay, and checks them with a ProfileVerifier three
+ * times: with an empty cache, with every entry stale, which should be
+ * all 304s, and with every entry fresh, which should send nothing.
+ *
+ * Usage: TestProfileVerifier [pages] [threads] [per_host]  (defaults: 200, 16, 0)
+ */
+
+public class TestProfileVerifier {
+
+    private static Logger log = LoggerFactory.getLogger(TestProfileVerifier.class);
+
+	public static void main(String[] args) throws Exception {
+		int pages = ( args.length > 0 ) ? Integer.parseInt(args[0]) : 200;
+		int threads = ( args.length > 1 ) ? Integer.parseInt(args[1]) : 16;
+		double per_host = ( args.length > 2 ) ? Double.parseDouble(args[2]) : 0;
+
+		final AtomicInteger hits = new AtomicInteger();
+		final AtomicInteger not_modified = new AtomicInteger();
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/staff/", new HttpHandler() {
+			public void handle(HttpExchange x) throws IOException {
+				hits.incrementAndGet();
+				String id = x.getRequestURI().getPath().substring("/staff/".length());
+				String etag = "\"v1-" + id + "\"";
+				int status = 200;
+				String body = "<html><h1 class=\"name\">Dr <b>Person</b>&nbsp;" + id + "</h1></html>";
+				if( id.startsWith("missing") ) {
+					status = 404;
+					body = "<h1>Not found</h1>";
+				} else if( etag.equals(x.getRequestHeaders().getFirst("If-None-Match")) ) {
+					status = 304;
+				}
+				try {
+					Thread.sleep(20);
+				} catch( InterruptedException e ) {
+					// just answer sooner
+				}
+				byte[] b = body.getBytes("UTF-8");
+				x.getResponseHeaders().set("ETag", etag);
+				x.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+				if( status == 304 ) {
+					not_modified.incrementAndGet();
+					x.sendResponseHeaders(304, -1);
+				} else {
+					x.sendResponseHeaders(status, b.length);
+					OutputStream out = x.getResponseBody();
+					out.write(b);
+					out.close();
+				}
+				x.close();
+			}
+		});
+		ExecutorService server_threads = Executors.newFixedThreadPool(threads);
+		server.setExecutor(server_threads);
+		server.start();
+		String base = "http://127.0.0.1:" + server.getAddress().getPort() + "/staff/";
+
+		ArrayList<String> urls = new ArrayList<String>();
+		for( int i = 0; i < pages; i++ ) {
+			urls.add(base + ( i % 10 == 9 ? "missing" + i : "p" + i ));
+		}
+		int expected = pages - pages / 10;
+		File file = File.createTempFile("urlcache", ".tsv");
+		boolean ok = true;
+		try {
+			UrlCache cache = new UrlCache(file, 3600);
+			long start = System.currentTimeMillis();
+			Map<String, UrlCache.Entry> r = new ProfileVerifier(threads, per_host, 5000, cache).fetch(urls);
+			long first = System.currentTimeMillis() - start;
+			int found = 0;
+			for( String u: urls ) {
+				UrlCache.Entry e = r.get(u);
+				String id = u.substring(base.length());
+				if( e != null && e.getStatus() == 200 && e.mentions("Person " + id) ) {
+					found++;
+				}
+			}
+			cache.save();
+			log.info("Cold: " + pages + " pages in " + first + " ms on " + threads + " threads, "
+					+ found + " names found, " + hits.get() + " requests");
+			ok = ( found == expected );
+
+			UrlCache stale = new UrlCache(file, 0);
+			stale.load();
+			hits.set(0);
+			start = System.currentTimeMillis();
+			new ProfileVerifier(threads, per_host, 5000, stale).fetch(urls);
+			log.info("Stale: " + (System.currentTimeMillis() - start) + " ms, " + not_modified.get()
+					+ " not modified, " + hits.get() + " requests");
+			ok = ok && not_modified.get() == expected;
+
+			UrlCache fresh = new UrlCache(file, 3600);
+			fresh.load();
+			hits.set(0);
+			new ProfileVerifier(threads, per_host, 5000, fresh).fetch(urls);
+			log.info("Fresh: " + hits.get() + " requests");
+			ok = ok && hits.get() == 0;
+		} finally {
+			server.stop(0);
+			server_threads.shutdown();
+			file.delete();
+		}
+		if( !ok ) {
+			throw new IllegalStateException("ProfileVerifier check failed");
+		}
+		log.info("OK");
+	}
+}
@@ -0,0 +1,172 @@
+package mintIntegration;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* UrlCache - what the profile URL verifier found at each URL the last
+ * time it was fetched, kept between runs in a tab-separated file:
+ *
+ *   url  checked  status  etag  last_modified  h1  h1 ...
+ *
+ * An entry younger than the TTL is used as it is.  An older one still
+ * has the validators, so the page can be fetched with a conditional
+ * GET and, if it hasn't changed, the headings from the cache are used.
+ * The file is written to a temp file and renamed into place.
+ */
+
+public class UrlCache {
+
+    private static Logger log = LoggerFactory.getLogger(UrlCache.class);
+
+	private File file;
+	private long ttl;
+	private ConcurrentHashMap<String, Entry> entries;
+
+
+	public static class Entry {
+		String url;
+		long checked;
+		int status;
+		String etag;
+		String last_modified;
+		String[] headings;
+
+		Entry(String url, long checked, int status, String etag, String last_modified, String[] headings) {
+			this.url = url;
+			this.checked = checked;
+			this.status = status;
+			this.etag = etag;
+			this.last_modified = last_modified;
+			this.headings = headings;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public String[] getHeadings() {
+			return headings;
+		}
+
+		/* mentions - whether any h1 has the text in it */
+
+		public boolean mentions(String text) {
+			for( String h: headings ) {
+				if( h.indexOf(text) >= 0 ) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+
+	/* UrlCache - a cache kept in file, which needn't exist yet, whose
+	 * entries can be used for ttl_sec seconds without asking the server
+	 * again
+	 */
+
+	UrlCache(File file, long ttl_sec) {
+		this.file = file;
+		ttl = ttl_sec * 1000;
+		entries = new ConcurrentHashMap<String, Entry>();
+	}
+
+
+	public void load() throws IOException {
+		if( !file.exists() ) {
+			return;
+		}
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while( (line = in.readLine()) != null ) {
+				String[] f = line.split("\t", -1);
+				if( f.length < 5 ) {
+					continue;
+				}
+				try {
+					String[] headings = new String[f.length - 5];
+					System.arraycopy(f, 5, headings, 0, headings.length);
+					entries.put(f[0], new Entry(f[0], Long.parseLong(f[1]), Integer.parseInt(f[2]),
+							empty(f[3]), empty(f[4]), headings));
+				} catch( NumberFormatException e ) {
+					log.warn("Bad line in " + file + ": " + line);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		log.info("Loaded " + entries.size() + " URLs from " + file);
+	}
+
+
+	public void save() throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+		boolean ok = false;
+		try {
+			for( Entry e: entries.values() ) {
+				out.write(clean(e.url));
+				out.write('\t');
+				out.write(Long.toString(e.checked));
+				out.write('\t');
+				out.write(Integer.toString(e.status));
+				out.write('\t');
+				out.write(clean(e.etag));
+				out.write('\t');
+				out.write(clean(e.last_modified));
+				for( String h: e.headings ) {
+					out.write('\t');
+					out.write(clean(h));
+				}
+				out.write('\n');
+			}
+			ok = true;
+		} finally {
+			out.close();
+			if( !ok ) {
+				temp.delete();
+			}
+		}
+		FileUtil.replace(temp, file);
+	}
+
+
+	public Entry get(String url) {
+		return entries.get(url);
+	}
+
+
+	public boolean isFresh(Entry e) {
+		return System.currentTimeMillis() - e.checked < ttl;
+	}
+
+
+	public void put(Entry e) {
+		entries.put(e.url, e);
+	}
+
+
+	private static String empty(String s) {
+		return ( s.length() == 0 ) ? null : s;
+	}
+
+
+	private static String clean(String s) {
+		if( s == null ) {
+			return "";
+		}
+		return s.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+}
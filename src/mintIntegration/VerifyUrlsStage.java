@@ -0,0 +1,114 @@
+package mintIntegration;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Map;
+
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* VerifyUrlsStage - pp2_test_profile_urls.pl: each person's profile URL
+ * is kept only if the page can be fetched and one of its h1 headings
+ * has their Given_Name and Family_Name in it.
+ *
+ * <stage type="verify_urls" query="People" threads="16" per_host="4"
+ *   timeout="10" cache="profile_urls.cache" cache_ttl="604800"/>
+ *
+ * threads is how many pages are fetched at once, per_host the most
+ * requests a second to one server, and timeout is in seconds.  The
+ * cache is kept in the working directory; see ProfileVerifier and
+ * UrlCache for how it's used.  field can be set if the URLs aren't in
+ * Staff_Profile_Homepage.
+ */
+
+public class VerifyUrlsStage implements Stage {
+
+    private static Logger log = LoggerFactory.getLogger(VerifyUrlsStage.class);
+
+	private String field;
+	private int threads;
+	private double per_host;
+	private int timeout;
+	private File cache_file;
+	private long cache_ttl;
+
+
+	VerifyUrlsStage(Configuration sconf, String dir) {
+		field = sconf.getString("[@field]", "Staff_Profile_Homepage");
+		threads = sconf.getInt("[@threads]", 8);
+		per_host = sconf.getDouble("[@per_host]", 4);
+		timeout = sconf.getInt("[@timeout]", 10) * 1000;
+		if( sconf.getString("[@cache]") != null ) {
+			cache_file = new File(dir, sconf.getString("[@cache]"));
+		}
+		cache_ttl = sconf.getLong("[@cache_ttl]", 7 * 24 * 3600);
+	}
+
+
+	public RecordStore apply(RecordStore people, PostProcess pp) throws Exception {
+		int url_col = people.column(field);
+		int given_col = people.column("Given_Name");
+		int family_col = people.column("Family_Name");
+		if( url_col < 0 || given_col < 0 || family_col < 0 ) {
+			throw new Exception("verify_urls needs " + field + ", Given_Name and Family_Name");
+		}
+
+		UrlCache cache;
+		if( cache_file != null ) {
+			cache = new UrlCache(cache_file, cache_ttl);
+			cache.load();
+		} else {
+			cache = new UrlCache(null, 0);
+		}
+
+		ArrayList<String> urls = new ArrayList<String>();
+		for( int r = 0; r < people.size(); r++ ) {
+			String url = people.get(r, url_col);
+			if( url != null && url.length() > 0 ) {
+				urls.add(url);
+			}
+		}
+		Map<String, UrlCache.Entry> results = new ProfileVerifier(threads, per_host, timeout, cache).fetch(urls);
+		if( cache_file != null ) {
+			cache.save();
+		}
+
+		int n_ok = 0;
+		int n_failed = 0;
+		int n_missing = 0;
+		int n_no_name = 0;
+		for( int r = 0; r < people.size(); r++ ) {
+			String url = people.get(r, url_col);
+			if( url == null || url.length() == 0 ) {
+				continue;
+			}
+			UrlCache.Entry e = results.get(url);
+			String name = value(people, r, given_col) + " " + value(people, r, family_col);
+			if( e == null ) {
+				n_failed++;
+			} else if( e.getStatus() != 200 ) {
+				n_missing++;
+			} else if( !e.mentions(name) ) {
+				n_no_name++;
+			} else {
+				n_ok++;
+				continue;
+			}
+			log.debug("[" + people.key(r) + " " + name + "] profile page not found " + url);
+			people.set(r, url_col, null);
+		}
+		log.info(n_ok + " profile URLs work");
+		if( n_failed + n_missing + n_no_name > 0 ) {
+			log.warn("Removed profile URLs: " + n_failed + " requests failed, " + n_missing
+					+ " pages not there, " + n_no_name + " without the person's name in an h1");
+		}
+		return people;
+	}
+
+
+	private static String value(RecordStore store, int row, int col) {
+		String v = store.get(row, col);
+		return ( v == null ) ? "" : v;
+	}
+}
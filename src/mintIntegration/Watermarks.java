@@ -0,0 +1,86 @@
+package mintIntegration;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.Properties;
+
+/* Watermarks - for each incremental query, the latest last-modified
+ * value it has written out, and when it last did a full sync.  Kept in
+ * a properties file in the working directory:
+ *
+ * People.watermark = 2012-03-01 10:15:00.0
+ * People.full_sync = 1330560000000
+ */
+
+public class Watermarks {
+
+	private File file;
+	private Properties props;
+
+
+	Watermarks(File file) throws IOException {
+		this.file = file;
+		props = new Properties();
+		if( file.exists() ) {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				props.load(in);
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+
+	/* get - null if there isn't one yet */
+
+	public synchronized Timestamp get(String query) {
+		String value = props.getProperty(query + ".watermark");
+		if( value == null ) {
+			return null;
+		}
+		return Timestamp.valueOf(value);
+	}
+
+
+	/* needsFullSync - if there's no watermark, or the last full sync was
+	 * more than resync_days ago
+	 */
+
+	public synchronized boolean needsFullSync(String query, int resync_days) {
+		String last = props.getProperty(query + ".full_sync");
+		if( last == null || get(query) == null ) {
+			return true;
+		}
+		if( resync_days <= 0 ) {
+			return false;
+		}
+		long age = System.currentTimeMillis() - Long.parseLong(last);
+		return age > resync_days * 24L * 60 * 60 * 1000;
+	}
+
+
+	/* advance - record a new watermark after a successful write, and
+	 * save the file
+	 */
+
+	public synchronized void advance(String query, Timestamp watermark, boolean full) throws IOException {
+		if( watermark != null ) {
+			props.setProperty(query + ".watermark", watermark.toString());
+		}
+		if( full ) {
+			props.setProperty(query + ".full_sync", Long.toString(System.currentTimeMillis()));
+		}
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			props.store(out, "Mint integration query watermarks");
+		} finally {
+			out.close();
+		}
+		FileUtil.replace(temp, file);
+	}
+}
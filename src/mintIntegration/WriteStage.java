@@ -0,0 +1,37 @@
+package mintIntegration;
+
+import java.io.IOException;
+
+/* WriteStage - writes one of a feed's outfields from the records as
+ * they are at this point, to the working directory or another of the
+ * <locations>.
+ */
+
+public class WriteStage implements Stage {
+
+	private Projection projection;
+	private String dir;
+
+
+	WriteStage(Projection projection, String dir) {
+		this.projection = projection;
+		this.dir = dir;
+	}
+
+
+	public RecordStore apply(RecordStore records, PostProcess pp) throws IOException {
+		if( !projection.open(dir) ) {
+			throw new IOException("Couldn't open " + projection.getFile());
+		}
+		boolean ok = false;
+		try {
+			projection.writeAll(records);
+			ok = true;
+		} finally {
+			if( !projection.close(ok) && ok ) {
+				throw new IOException("Couldn't write " + projection.getFile());
+			}
+		}
+		return records;
+	}
+}